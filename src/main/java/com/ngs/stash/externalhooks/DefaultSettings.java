@@ -12,6 +12,7 @@ import java.util.Arrays;
 import java.util.List;
 
 import com.atlassian.bitbucket.hook.repository.RepositoryHookTrigger;
+import com.ngs.stash.externalhooks.hook.AsyncHookQueue.OverflowPolicy;
 
 public class DefaultSettings {
   public static final List<RepositoryHookTrigger> PreReceiveHookTriggers =
@@ -28,4 +29,48 @@ public class DefaultSettings {
 
   public static final List<RepositoryHookTrigger> MergeCheckHookTriggers =
       Arrays.asList(PULL_REQUEST_MERGE);
+
+  public static final int ReconcileThreads =
+      Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+
+  public static final int MaxReconcileThreads = 32;
+
+  public static final int WalkerPageSize = 100;
+
+  public static final boolean WalkerPrefetch = false;
+
+  // 0 stands for unlimited, the factory backs off by itself when the node is
+  // under load
+  public static final int FactoryRate = 0;
+
+  public static final int FactoryConcurrency = 4;
+
+  public static final int MaxFactoryConcurrency = 32;
+
+  public static final int AsyncWorkers = 4;
+
+  public static final int MaxAsyncWorkers = 32;
+
+  public static final int AsyncQueueSize = 1000;
+
+  public static final int MaxAsyncQueueSize = 100000;
+
+  public static final OverflowPolicy AsyncOverflow = OverflowPolicy.BLOCK;
+
+  public static final int AsyncTimeout = 3600;
+
+  public static final int MaxAsyncTimeout = 86400;
+
+  // 0 means no limit
+  public static final int ConcurrencyGlobal = 0;
+
+  public static final int ConcurrencyHook = 0;
+
+  public static final int ConcurrencyRepository = 0;
+
+  public static final int MaxConcurrency = 1024;
+
+  public static final int ConcurrencyWait = 60;
+
+  public static final int MaxConcurrencyWait = 3600;
 }
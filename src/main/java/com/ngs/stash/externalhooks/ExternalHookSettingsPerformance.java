@@ -0,0 +1,44 @@
+package com.ngs.stash.externalhooks;
+
+import javax.xml.bind.annotation.XmlElement;
+
+public class ExternalHookSettingsPerformance {
+  @XmlElement(name = "reconcile_threads")
+  public Integer reconcile_threads;
+
+  @XmlElement(name = "walker_page_size")
+  public Integer walker_page_size;
+
+  @XmlElement(name = "walker_prefetch")
+  public Boolean walker_prefetch;
+
+  @XmlElement(name = "factory_rate")
+  public Integer factory_rate;
+
+  @XmlElement(name = "factory_concurrency")
+  public Integer factory_concurrency;
+
+  @XmlElement(name = "async_workers")
+  public Integer async_workers;
+
+  @XmlElement(name = "async_queue_size")
+  public Integer async_queue_size;
+
+  @XmlElement(name = "async_overflow")
+  public String async_overflow;
+
+  @XmlElement(name = "async_timeout")
+  public Integer async_timeout;
+
+  @XmlElement(name = "concurrency_global")
+  public Integer concurrency_global;
+
+  @XmlElement(name = "concurrency_hook")
+  public Integer concurrency_hook;
+
+  @XmlElement(name = "concurrency_repository")
+  public Integer concurrency_repository;
+
+  @XmlElement(name = "concurrency_wait")
+  public Integer concurrency_wait;
+}
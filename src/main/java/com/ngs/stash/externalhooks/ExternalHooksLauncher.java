@@ -86,6 +86,7 @@ public class ExternalHooksLauncher implements LifecycleAware, InitializingBean,
   @Override
   public void destroy() throws Exception {
     unregisterListener();
+    service.stop();
   }
 
   /**
@@ -5,21 +5,15 @@ import java.util.Date;
 
 import javax.inject.Inject;
 
-import com.atlassian.bitbucket.auth.AuthenticationContext;
+import com.atlassian.activeobjects.external.ActiveObjects;
 import com.atlassian.bitbucket.cluster.ClusterService;
-import com.atlassian.bitbucket.hook.repository.RepositoryHookService;
-import com.atlassian.bitbucket.hook.script.HookScriptService;
 import com.atlassian.bitbucket.permission.Permission;
-import com.atlassian.bitbucket.permission.PermissionService;
-import com.atlassian.bitbucket.project.Project;
 import com.atlassian.bitbucket.project.ProjectService;
-import com.atlassian.bitbucket.repository.Repository;
 import com.atlassian.bitbucket.repository.RepositoryService;
-import com.atlassian.bitbucket.scope.ProjectScope;
-import com.atlassian.bitbucket.scope.RepositoryScope;
 import com.atlassian.bitbucket.server.StorageService;
 import com.atlassian.bitbucket.user.SecurityService;
 import com.atlassian.bitbucket.user.UserService;
+import com.atlassian.cache.CacheManager;
 import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
 import com.atlassian.sal.api.pluginsettings.PluginSettingsFactory;
 import com.atlassian.scheduler.JobRunner;
@@ -32,7 +26,9 @@ import com.atlassian.scheduler.config.JobId;
 import com.atlassian.scheduler.config.JobRunnerKey;
 import com.atlassian.scheduler.config.RunMode;
 import com.atlassian.scheduler.config.Schedule;
-import com.atlassian.upm.api.license.PluginLicenseManager;
+import com.ngs.stash.externalhooks.dao.ExternalHooksSettingsDao;
+import com.ngs.stash.externalhooks.dao.FactoryStateDao;
+import com.ngs.stash.externalhooks.hook.HookConcurrency;
 import com.ngs.stash.externalhooks.util.Walker;
 
 import org.slf4j.Logger;
@@ -47,50 +43,48 @@ public class ExternalHooksService implements JobRunner {
   private SecurityService securityService;
 
   private Walker walker;
-  private HooksFactory hooksFactory;
+  private HooksReconciler reconciler;
+  private HooksCoordinator hooksCoordinator;
+  private HooksFactoryJob factoryJob;
+  private ExternalHooksSettingsDao settingsDao;
   private ClusterService clusterService;
-  private HookScriptService hookScriptService;
+  private HookConcurrency hookConcurrency;
 
   @Inject
   public ExternalHooksService(
       @ComponentImport UserService userService,
       @ComponentImport RepositoryService repositoryService,
       @ComponentImport SchedulerService schedulerService,
-      @ComponentImport HookScriptService hookScriptService,
-      @ComponentImport RepositoryHookService repositoryHookService,
       @ComponentImport ProjectService projectService,
       @ComponentImport PluginSettingsFactory pluginSettingsFactory,
       @ComponentImport SecurityService securityService,
-      @ComponentImport AuthenticationContext authenticationContext,
-      @ComponentImport("permissions") PermissionService permissionService,
-      @ComponentImport PluginLicenseManager pluginLicenseManager,
       @ComponentImport ClusterService clusterService,
-      @ComponentImport StorageService storageService)
-      throws IOException {
-    this.hookScriptService = hookScriptService;
+      @ComponentImport StorageService storageService,
+      @ComponentImport ActiveObjects ao,
+      @ComponentImport CacheManager cacheManager,
+      @ComponentImport HooksCoordinator hooksCoordinator,
+      @ComponentImport HooksFactory hooksFactory) {
     this.schedulerService = schedulerService;
     this.securityService = securityService;
     this.clusterService = clusterService;
+    this.hooksCoordinator = hooksCoordinator;
+
+    this.settingsDao = new ExternalHooksSettingsDao(pluginSettingsFactory, cacheManager);
 
     this.walker = new Walker(securityService, userService, projectService, repositoryService);
 
-    // Unfortunately, no way to @ComponentImport it because Named() used here.
-    // Consider it to replace with lifecycle aware listener.
-    this.hooksFactory = new HooksFactory(
-        repositoryHookService,
-        new HooksCoordinator(
-            userService,
-            projectService,
-            repositoryService,
-            repositoryHookService,
-            authenticationContext,
-            permissionService,
-            pluginLicenseManager,
-            clusterService,
-            storageService,
-            hookScriptService,
-            pluginSettingsFactory,
-            securityService));
+    this.hookConcurrency = new HookConcurrency(storageService, clusterService);
+
+    this.reconciler = new HooksReconciler(securityService, walker, hooksFactory);
+
+    this.factoryJob = new HooksFactoryJob(
+        schedulerService,
+        securityService,
+        clusterService,
+        new FactoryStateDao(ao),
+        settingsDao,
+        hooksFactory,
+        new Walker(securityService, userService, projectService, repositoryService));
   }
 
   public void start() {
@@ -121,6 +115,41 @@ public class ExternalHooksService implements JobRunner {
       log.error("unable to schedule external hooks job");
       e.printStackTrace();
     }
+
+    // The factory job might be picked up by any node of the cluster, so its
+    // runner has to be registered everywhere. Jobs interrupted by a node
+    // shutdown continue from their last checkpoint.
+    this.factoryJob.register();
+
+    try {
+      this.factoryJob.resume();
+    } catch (Exception e) {
+      log.error("unable to resume interrupted factory job", e);
+    }
+
+    // Hook scripts read limits from the home directory, the file is written on
+    // start because it's missing after upgrade or when the home is restored.
+    try {
+      this.hookConcurrency.apply(settingsDao);
+    } catch (IOException e) {
+      log.error("unable to write concurrency limits", e);
+    }
+
+    try {
+      this.hooksCoordinator.abandonProjectJobs();
+    } catch (Exception e) {
+      log.error("unable to clean up interrupted project jobs", e);
+    }
+
+    try {
+      this.hooksCoordinator.warmUp();
+    } catch (Exception e) {
+      log.error("unable to load installed hook scripts into the cache", e);
+    }
+  }
+
+  public void stop() {
+    this.factoryJob.unregister();
   }
 
   public JobRunnerResponse runJob(JobRunnerRequest request) {
@@ -146,18 +175,22 @@ public class ExternalHooksService implements JobRunner {
   }
 
   private void enableHookScripts() {
-    walker.walk(new Walker.Callback() {
-      @Override
-      public void onProject(Project project) {
-        hooksFactory.install(new ProjectScope(project));
-      }
+    // Installations made by previous versions of the plugin are moved to the
+    // database once, so projects can be disabled without walking repositories.
+    hooksCoordinator.migrateLegacy();
 
-      @Override
-      public void onRepository(Repository repository) {
-        hooksFactory.install(new RepositoryScope(repository));
-      }
-    });
+    // In Data Center the job is split into shards processed by all nodes
+    // instead of keeping a single node busy while others sit idle.
+    if (this.clusterService.getInformation().getNodes().size() > 1) {
+      log.info("Scheduling factory job to create HookScripts on all nodes of the cluster");
+
+      factoryJob.scheduleIfIdle();
+      return;
+    }
+
+    walker.setPageSize(settingsDao.getWalkerPageSize());
+    walker.setPrefetch(settingsDao.isWalkerPrefetch());
 
-    return;
+    reconciler.reconcile(settingsDao.getReconcileThreads());
   }
 }
@@ -7,4 +7,7 @@ import javax.xml.bind.annotation.XmlRootElement;
 public class ExternalHooksSettings {
   @XmlElement(name = "triggers")
   public ExternalHookSettingsTriggers triggers = new ExternalHookSettingsTriggers();
+
+  @XmlElement(name = "performance")
+  public ExternalHookSettingsPerformance performance = new ExternalHookSettingsPerformance();
 }
@@ -0,0 +1,157 @@
+package com.ngs.stash.externalhooks;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.ngs.stash.externalhooks.ao.FactoryShard;
+
+/**
+ * In-memory progress of the factory job shard running on this node.
+ *
+ * <p>Saving {@link FactoryShard} after every scope means an extra database UPDATE per repository,
+ * so progress is kept in memory and flushed to the database only once per {@link
+ * #FLUSH_INTERVAL_MILLIS} or {@link #FLUSH_INTERVAL_SCOPES}, whichever comes first. The node which
+ * runs the shard serves live progress from memory, other nodes read the last flushed state.
+ */
+public class FactoryProgress {
+  public static final long FLUSH_INTERVAL_MILLIS = 1000L;
+  public static final int FLUSH_INTERVAL_SCOPES = 500;
+
+  private static final ConcurrentMap<Integer, FactoryProgress> running =
+      new ConcurrentHashMap<>();
+
+  private final FactoryShard shard;
+  private final int id;
+
+  private final AtomicInteger current = new AtomicInteger();
+  private volatile int total;
+  private volatile boolean finished;
+  private volatile String cursor;
+
+  private long flushedAt;
+  private int flushedCurrent;
+
+  private FactoryProgress(FactoryShard shard) {
+    this.shard = shard;
+    this.id = shard.getID();
+    this.current.set(shard.getCurrent());
+    this.total = shard.getTotal();
+    this.cursor = shard.getCursor();
+  }
+
+  /**
+   * Makes progress of the claimed shard available via {@link #find(int)}. Progress of a resumed
+   * shard continues from the last flushed state.
+   *
+   * @param shard
+   */
+  public static FactoryProgress start(FactoryShard shard) {
+    FactoryProgress progress = new FactoryProgress(shard);
+
+    running.put(progress.getId(), progress);
+
+    return progress;
+  }
+
+  /**
+   * Returns live progress of the shard if it's running on this node, null otherwise.
+   *
+   * @param id
+   */
+  public static FactoryProgress find(int id) {
+    return running.get(id);
+  }
+
+  public int getId() {
+    return id;
+  }
+
+  public boolean isFinished() {
+    return finished;
+  }
+
+  public int getCurrent() {
+    return current.get();
+  }
+
+  public int getTotal() {
+    return total;
+  }
+
+  public void setTotal(int total) {
+    this.total = total;
+
+    flushIfNeeded();
+  }
+
+  public String getCursor() {
+    return cursor;
+  }
+
+  /**
+   * Remembers the last completed unit of work, it's flushed together with the progress.
+   *
+   * @param cursor
+   */
+  public void setCursor(String cursor) {
+    this.cursor = cursor;
+  }
+
+  public int increment() {
+    int value = current.incrementAndGet();
+
+    flushIfNeeded();
+
+    return value;
+  }
+
+  public void finish() {
+    this.total = current.get();
+    this.finished = true;
+
+    try {
+      synchronized (this) {
+        shard.setFinished(true);
+        flush();
+      }
+    } finally {
+      running.remove(id);
+    }
+  }
+
+  /** Flushes progress of the unfinished shard and stops serving it from memory. */
+  public void stop() {
+    try {
+      synchronized (this) {
+        flush();
+      }
+    } finally {
+      running.remove(id);
+    }
+  }
+
+  private void flushIfNeeded() {
+    long now = System.currentTimeMillis();
+
+    synchronized (this) {
+      if (now - flushedAt < FLUSH_INTERVAL_MILLIS
+          && current.get() - flushedCurrent < FLUSH_INTERVAL_SCOPES) {
+        return;
+      }
+
+      flush();
+    }
+  }
+
+  // should be called while holding the lock, AO entities are not thread-safe
+  private void flush() {
+    flushedAt = System.currentTimeMillis();
+    flushedCurrent = current.get();
+
+    shard.setCurrent(flushedCurrent);
+    shard.setTotal(total);
+    shard.setCursor(cursor);
+    shard.save();
+  }
+}
@@ -0,0 +1,38 @@
+package com.ngs.stash.externalhooks;
+
+/** Progress of the factory job aggregated across all of its shards. */
+public class FactorySummary {
+  private final int id;
+  private final boolean started;
+  private final boolean finished;
+  private final int current;
+  private final int total;
+
+  public FactorySummary(int id, boolean started, boolean finished, int current, int total) {
+    this.id = id;
+    this.started = started;
+    this.finished = finished;
+    this.current = current;
+    this.total = total;
+  }
+
+  public int getId() {
+    return id;
+  }
+
+  public boolean isStarted() {
+    return started;
+  }
+
+  public boolean isFinished() {
+    return finished;
+  }
+
+  public int getCurrent() {
+    return current;
+  }
+
+  public int getTotal() {
+    return total;
+  }
+}
@@ -1,53 +1,152 @@
 package com.ngs.stash.externalhooks;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.Nonnull;
 
+import com.atlassian.activeobjects.external.ActiveObjects;
 import com.atlassian.bitbucket.auth.AuthenticationContext;
 import com.atlassian.bitbucket.cluster.ClusterService;
+import com.atlassian.bitbucket.concurrent.LockService;
 import com.atlassian.bitbucket.event.hook.RepositoryHookDeletedEvent;
 import com.atlassian.bitbucket.event.hook.RepositoryHookDisabledEvent;
 import com.atlassian.bitbucket.event.hook.RepositoryHookEnabledEvent;
 import com.atlassian.bitbucket.event.repository.RepositoryCreatedEvent;
+import com.atlassian.bitbucket.event.repository.RepositoryDeletedEvent;
+import com.atlassian.bitbucket.hook.repository.PostRepositoryHookContext;
 import com.atlassian.bitbucket.hook.repository.GetRepositoryHookSettingsRequest;
 import com.atlassian.bitbucket.hook.repository.RepositoryHook;
+import com.atlassian.bitbucket.hook.repository.RepositoryHookRequest;
 import com.atlassian.bitbucket.hook.repository.RepositoryHookService;
 import com.atlassian.bitbucket.hook.repository.RepositoryHookSettings;
 import com.atlassian.bitbucket.hook.script.HookScriptService;
 import com.atlassian.bitbucket.hook.script.HookScriptType;
 import com.atlassian.bitbucket.permission.Permission;
 import com.atlassian.bitbucket.permission.PermissionService;
+import com.atlassian.bitbucket.project.Project;
 import com.atlassian.bitbucket.project.ProjectService;
 import com.atlassian.bitbucket.project.ProjectType;
+import com.atlassian.bitbucket.repository.RefChange;
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.repository.RepositoryCloneLinksRequest;
 import com.atlassian.bitbucket.repository.RepositoryService;
 import com.atlassian.bitbucket.scope.ProjectScope;
 import com.atlassian.bitbucket.scope.RepositoryScope;
 import com.atlassian.bitbucket.scope.Scope;
 import com.atlassian.bitbucket.scope.ScopeType;
+import com.atlassian.bitbucket.server.ApplicationPropertiesService;
 import com.atlassian.bitbucket.server.StorageService;
 import com.atlassian.bitbucket.setting.Settings;
 import com.atlassian.bitbucket.setting.SettingsValidationErrors;
+import com.atlassian.bitbucket.util.NamedLink;
+import com.atlassian.bitbucket.user.ApplicationUser;
 import com.atlassian.bitbucket.user.SecurityService;
 import com.atlassian.bitbucket.user.UserService;
+import com.atlassian.cache.Cache;
+import com.atlassian.cache.CacheManager;
+import com.atlassian.cache.CacheSettingsBuilder;
 import com.atlassian.event.api.EventListener;
 import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
 import com.atlassian.sal.api.pluginsettings.PluginSettingsFactory;
-import com.atlassian.upm.api.license.PluginLicenseManager;
+import com.google.common.base.Strings;
+import com.ngs.stash.externalhooks.ao.ProjectJob;
 import com.ngs.stash.externalhooks.dao.ExternalHooksSettingsDao;
+import com.ngs.stash.externalhooks.dao.ProjectJobDao;
+import com.ngs.stash.externalhooks.hook.AsyncHookBatcher;
+import com.ngs.stash.externalhooks.hook.AsyncHookQueue;
+import com.ngs.stash.externalhooks.hook.AsyncHookSpool;
 import com.ngs.stash.externalhooks.hook.ExternalHookScript;
 import com.ngs.stash.externalhooks.util.ScopeUtil;
 import com.ngs.stash.externalhooks.util.Walker;
 
-public class HooksCoordinator {
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+public class HooksCoordinator implements InitializingBean, DisposableBean {
+  private static Logger log = LoggerFactory.getLogger(HooksCoordinator.class);
+
+  // how often progress of the project job is saved, in repositories
+  private static final int PROJECT_JOB_SAVE_INTERVAL = 100;
+
+  // how long hook events of the same scope are collected before the last
+  // one of them is applied
+  private static final long COALESCE_MILLIS = 1000L;
+
+  // how long created repositories are collected before project hook scripts
+  // are installed on them
+  private static final long CREATED_REPOSITORIES_MILLIS = 1000L;
+
+  // how long project hook state and settings are reused for repositories of
+  // the project
+  private static final long PROJECT_HOOK_CACHE_MILLIS = 10000L;
+
   private RepositoryHookService repositoryHookService;
+  private RepositoryService repositoryService;
+  private ClusterService clusterService;
+  private ProjectJobDao projectJobDao;
+  private AuthenticationContext authenticationContext;
+  private PermissionService permissionService;
+  private ApplicationPropertiesService applicationPropertiesService;
+  private AsyncHookQueue asyncQueue;
+  private AsyncHookBatcher asyncBatcher;
 
   private Map<String, ExternalHookScript> scripts = new HashMap<>();
   private Walker walker;
   private SecurityService securityService;
 
+  // Project hooks are enabled and disabled one at a time, so events of the
+  // same project are processed in the order they have been received.
+  private final ExecutorService projectJobs = Executors.newSingleThreadExecutor(runnable -> {
+    Thread thread = new Thread(runnable, "external-hooks-project-jobs");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  // Last pending change of every (hook, scope), see coalesce().
+  private final ConcurrentMap<String, Runnable> pendingChanges = new ConcurrentHashMap<>();
+  private final ScheduledExecutorService coalescer =
+      Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "external-hooks-coalescer");
+        thread.setDaemon(true);
+        return thread;
+      });
+
+  // Interrupted executions wait for free slots of the async queue while they
+  // are replayed, so they don't hold the coalescer.
+  private final ExecutorService replayer = Executors.newSingleThreadExecutor(runnable -> {
+    Thread thread = new Thread(runnable, "external-hooks-replay");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  private final Queue<Repository> createdRepositories = new ConcurrentLinkedQueue<>();
+  private final AtomicBoolean inheritScheduled = new AtomicBoolean();
+
+  // Project hooks by hook and project, invalidated cluster-wide by hook
+  // events of the project on any node.
+  private Cache<String, ProjectHook> projectHooks;
+
+  // Jobs of pending changes of project hooks by change key, guarded by
+  // itself, see createProjectJob().
+  private final Map<String, Integer> pendingJobs = new HashMap<>();
+
   public HooksCoordinator(
       @ComponentImport UserService userService,
       @ComponentImport ProjectService projectService,
@@ -55,28 +154,66 @@ public class HooksCoordinator {
       @ComponentImport RepositoryHookService repositoryHookService,
       @ComponentImport AuthenticationContext authenticationContext,
       @ComponentImport("permissions") PermissionService permissionService,
-      @ComponentImport PluginLicenseManager pluginLicenseManager,
+      @ComponentImport LicenseValidator licenseValidator,
       @ComponentImport ClusterService clusterService,
       @ComponentImport StorageService storageService,
       @ComponentImport HookScriptService hookScriptService,
       @ComponentImport PluginSettingsFactory pluginSettingsFactory,
-      @ComponentImport SecurityService securityService)
+      @ComponentImport SecurityService securityService,
+      @ComponentImport ActiveObjects ao,
+      @ComponentImport CacheManager cacheManager,
+      @ComponentImport ApplicationPropertiesService applicationPropertiesService,
+      @ComponentImport LockService lockService)
       throws IOException {
     this.repositoryHookService = repositoryHookService;
+    this.authenticationContext = authenticationContext;
+    this.permissionService = permissionService;
+    this.applicationPropertiesService = applicationPropertiesService;
+    this.repositoryService = repositoryService;
+    this.clusterService = clusterService;
     this.securityService = securityService;
-
-    ExternalHooksSettingsDao settingsDao = new ExternalHooksSettingsDao(pluginSettingsFactory);
+    this.projectJobDao = new ProjectJobDao(ao);
+
+    this.projectHooks = cacheManager.getCache(
+        Const.PLUGIN_KEY + ":project-hooks",
+        null,
+        new CacheSettingsBuilder()
+            .remote()
+            .replicateViaInvalidation()
+            .expireAfterWrite(PROJECT_HOOK_CACHE_MILLIS, TimeUnit.MILLISECONDS)
+            .build());
+
+    // cached values are instances of plugin classes, values loaded before the
+    // plugin has been reloaded belong to its previous class loader
+    this.projectHooks.removeAll();
+
+    ExternalHooksSettingsDao settingsDao =
+        new ExternalHooksSettingsDao(pluginSettingsFactory, cacheManager);
+
+    // Every node has its own spool in the shared home, so a restarted node
+    // replays executions interrupted on it.
+    this.asyncQueue = new AsyncHookQueue(
+        settingsDao,
+        new AsyncHookSpool(() -> new File(
+            getHomeDir(storageService, clusterService),
+            "external-hooks-spool/" + getLocalNode() + ".spool")));
+
+    this.asyncBatcher = new AsyncHookBatcher(asyncQueue);
 
     this.scripts.put(
         Const.PRE_RECEIVE_HOOK_ID,
         new ExternalHookScript(
             permissionService,
-            pluginLicenseManager,
+            licenseValidator,
             clusterService,
             storageService,
             hookScriptService,
+            repositoryService,
             pluginSettingsFactory,
+            ao,
+            cacheManager,
             securityService,
+            lockService,
             Const.PRE_RECEIVE_HOOK_ID,
             HookScriptType.PRE,
             () -> settingsDao.getPreReceiveHookTriggers()));
@@ -85,12 +222,16 @@ public class HooksCoordinator {
         Const.POST_RECEIVE_HOOK_ID,
         new ExternalHookScript(
             permissionService,
-            pluginLicenseManager,
+            licenseValidator,
             clusterService,
             storageService,
             hookScriptService,
+            repositoryService,
             pluginSettingsFactory,
+            ao,
+            cacheManager,
             securityService,
+            lockService,
             Const.POST_RECEIVE_HOOK_ID,
             HookScriptType.POST,
             () -> settingsDao.getPostReceiveHookTriggers()));
@@ -99,12 +240,16 @@ public class HooksCoordinator {
         Const.MERGE_CHECK_HOOK_ID,
         new ExternalHookScript(
             permissionService,
-            pluginLicenseManager,
+            licenseValidator,
             clusterService,
             storageService,
             hookScriptService,
+            repositoryService,
             pluginSettingsFactory,
+            ao,
+            cacheManager,
             securityService,
+            lockService,
             Const.MERGE_CHECK_HOOK_ID,
             HookScriptType.PRE,
             () -> settingsDao.getMergeCheckHookTriggers()));
@@ -121,6 +266,140 @@ public class HooksCoordinator {
     return scripts.get(idOrKey);
   }
 
+  @Override
+  public void afterPropertiesSet() {
+    // executions interrupted by restart are replayed in the background, so
+    // they don't delay start of the plugin
+    replayer.execute(() -> asyncQueue.replay());
+  }
+
+  @Override
+  public void destroy() {
+    coalescer.shutdownNow();
+    projectJobs.shutdownNow();
+    replayer.shutdownNow();
+    asyncBatcher.stop();
+    asyncQueue.stop();
+  }
+
+  public AsyncHookQueue getAsyncQueue() {
+    return asyncQueue;
+  }
+
+  /**
+   * Queues execution of the asynchronous post-receive hook, see {@link AsyncHookQueue}. Hooks which
+   * are not asynchronous are executed by their HookScripts.
+   */
+  public void postUpdate(
+      @Nonnull String hookId,
+      @Nonnull PostRepositoryHookContext context,
+      @Nonnull RepositoryHookRequest request) {
+    ExternalHookScript script = scripts.get(hookId);
+    if (script == null || !script.isQueued(context.getSettings())) {
+      return;
+    }
+
+    // Bitbucket invokes the hook on every trigger, while hook scripts are
+    // executed only on triggers selected in the add-on settings.
+    if (!script.isTriggeredBy(request.getTrigger())) {
+      return;
+    }
+
+    Repository repository = request.getRepository();
+    Settings settings = context.getSettings();
+
+    StringBuilder stdin = new StringBuilder();
+    for (RefChange change : request.getRefChanges()) {
+      stdin.append(change.getFromHash()).append(' ');
+      stdin.append(change.getToHash()).append(' ');
+      stdin.append(change.getRef().getId()).append('\n');
+    }
+
+    List<String> command = script.getCommand(settings);
+
+    AsyncHookQueue.Job job = new AsyncHookQueue.Job(
+        hookId + " of " + ScopeUtil.toString(new RepositoryScope(repository)),
+        command,
+        getEnvironment(repository, request),
+        stdin.toString());
+
+    long window = script.getBatchWindowMillis(settings);
+    if (window == 0) {
+      asyncQueue.submit(job);
+      return;
+    }
+
+    // pushes are batched per repository and executable, the command covers
+    // both the executable and its parameters
+    asyncBatcher.add(
+        hookId + ":" + repository.getId() + ":" + command.hashCode(),
+        job,
+        request.getRefChanges(),
+        window,
+        script.getBatchSize(settings));
+  }
+
+  // Same variables Bitbucket passes to HookScripts.
+  private Map<String, String> getEnvironment(
+      Repository repository, RepositoryHookRequest request) {
+    Map<String, String> environment = new HashMap<>();
+
+    environment.put("BB_HOOK_TRIGGER_ID", request.getTrigger().getId());
+    environment.put("BB_HOOK_TYPE", "POST");
+    environment.put("BB_IS_DRY_RUN", String.valueOf(request.isDryRun()));
+    environment.put("BB_PROJECT_KEY", repository.getProject().getKey());
+    environment.put("BB_REPO_SLUG", repository.getSlug());
+    environment.put("BB_REPO_IS_FORK", String.valueOf(repository.isFork()));
+    environment.put("BB_REPO_IS_PUBLIC", String.valueOf(repository.isPublic()));
+    environment.put("BB_BASE_URL", applicationPropertiesService.getBaseUrl().toString());
+
+    RepositoryCloneLinksRequest linksRequest =
+        new RepositoryCloneLinksRequest.Builder().repository(repository).build();
+    for (NamedLink link : repositoryService.getCloneLinks(linksRequest)) {
+      if ("ssh".equals(link.getName())) {
+        environment.put("BB_REPO_CLONE_SSH", link.getHref());
+      } else if ("http".equals(link.getName())) {
+        environment.put("BB_REPO_CLONE_HTTP", link.getHref());
+      }
+    }
+
+    ApplicationUser user = authenticationContext.getCurrentUser();
+    if (user != null) {
+      // ProcessBuilder doesn't accept null values
+      environment.put("BB_USER_NAME", Strings.nullToEmpty(user.getName()));
+      environment.put("BB_USER_DISPLAY_NAME", Strings.nullToEmpty(user.getDisplayName()));
+      environment.put("BB_USER_EMAIL", Strings.nullToEmpty(user.getEmailAddress()));
+      environment.put("BB_USER_PERMISSIONS", getUserPermission(user, repository).name());
+    }
+
+    return environment;
+  }
+
+  private Permission getUserPermission(ApplicationUser user, Repository repository) {
+    if (permissionService.hasGlobalPermission(user, Permission.SYS_ADMIN)) {
+      return Permission.SYS_ADMIN;
+    }
+
+    if (permissionService.hasGlobalPermission(user, Permission.ADMIN)) {
+      return Permission.ADMIN;
+    }
+
+    if (permissionService.hasProjectPermission(
+        user, repository.getProject(), Permission.PROJECT_ADMIN)) {
+      return Permission.PROJECT_ADMIN;
+    }
+
+    if (permissionService.hasRepositoryPermission(user, repository, Permission.REPO_ADMIN)) {
+      return Permission.REPO_ADMIN;
+    }
+
+    if (permissionService.hasRepositoryPermission(user, repository, Permission.REPO_WRITE)) {
+      return Permission.REPO_WRITE;
+    }
+
+    return Permission.REPO_READ;
+  }
+
   @EventListener
   public void onHookEnabled(RepositoryHookEnabledEvent event) {
     ExternalHookScript script = getScript(event.getRepositoryHookKey());
@@ -128,7 +407,16 @@ public class HooksCoordinator {
       return;
     }
 
-    enable(event.getScope(), script);
+    Scope scope = event.getScope();
+    if (ScopeUtil.isProject(scope)) {
+      ProjectScope project = (ProjectScope) scope;
+      projectHooks.remove(getProjectHookKey(project, script));
+
+      int id = createProjectJob(project, script, true);
+      coalesce(scope, script, () -> schedule(id, project, script));
+    } else if (ScopeUtil.isRepository(scope)) {
+      coalesce(scope, script, () -> enable((RepositoryScope) scope, script));
+    }
   }
 
   @EventListener
@@ -140,9 +428,205 @@ public class HooksCoordinator {
 
     Scope scope = event.getScope();
     if (ScopeUtil.isRepository(scope)) {
-      disable((RepositoryScope) scope, script);
+      coalesce(scope, script, () -> disable((RepositoryScope) scope, script));
     } else if (ScopeUtil.isProject(scope)) {
-      disable((ProjectScope) scope, script);
+      ProjectScope project = (ProjectScope) scope;
+      projectHooks.remove(getProjectHookKey(project, script));
+
+      int id = createProjectJob(project, script, false);
+      coalesce(scope, script, () -> schedule(id, project, script));
+    }
+  }
+
+  // Every hook event used to delete and create hook scripts right away, so
+  // toggling a hook several times or bulk changes made by automation caused
+  // a lot of redundant HookScript churn. Events of the same hook and scope
+  // are collected for COALESCE_MILLIS instead and only the last one is
+  // applied, it reflects the final state of the hook.
+  private void coalesce(Scope scope, ExternalHookScript script, Runnable change) {
+    String key = getChangeKey(scope, script);
+
+    if (pendingChanges.put(key, change) != null) {
+      log.debug("coalesced pending change of {}", key);
+      return;
+    }
+
+    coalescer.schedule(
+        () -> {
+          Runnable last = pendingChanges.remove(key);
+          if (last == null) {
+            return;
+          }
+
+          try {
+            securityService
+                .withPermission(Permission.SYS_ADMIN, "External Hooks: apply hook changes")
+                .call(() -> {
+                  last.run();
+                  return null;
+                });
+          } catch (Exception e) {
+            log.error("unable to apply change of {}", key, e);
+          }
+        },
+        COALESCE_MILLIS,
+        TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Returns the most recent job of the project hook, null if there is no such job.
+   *
+   * @param scope
+   * @param hookKey
+   */
+  public ProjectJob findProjectJob(ProjectScope scope, String hookKey) {
+    ExternalHookScript script = getScript(hookKey);
+    if (script == null) {
+      return null;
+    }
+
+    return projectJobDao.findLatest(script.getHookId(), scope.getProject().getId());
+  }
+
+  public ProjectJob findProjectJob(int id) {
+    return projectJobDao.find(id);
+  }
+
+  /**
+   * Marks jobs which were running on this node before it has been restarted as finished. Their
+   * repositories are covered by re-creating hook scripts on start anyway.
+   */
+  public void abandonProjectJobs() {
+    for (ProjectJob job : projectJobDao.findUnfinished(getLocalNode())) {
+      log.info("project job {} has been interrupted by restart", job.getID());
+
+      job.setFinished(true);
+      job.save();
+    }
+  }
+
+  /**
+   * Loads installed hook scripts into the cache, so the first hook events after start don't query
+   * the database for every repository.
+   */
+  public void warmUp() {
+    scripts.forEach((hookId, script) -> {
+      int installed = script.warmUp();
+
+      log.info("loaded {} installed hook scripts {} into the cache", installed, hookId);
+    });
+  }
+
+  private String getChangeKey(Scope scope, ExternalHookScript script) {
+    return script.getHookId() + ":" + ScopeUtil.toString(scope);
+  }
+
+  // Jobs are created right away, so they are available through the REST API
+  // while the change is being coalesced. Changes coalesced into a job which
+  // hasn't been started yet update the job instead of creating another one.
+  private int createProjectJob(ProjectScope scope, ExternalHookScript script, boolean enable) {
+    String key = getChangeKey(scope, script);
+
+    synchronized (pendingJobs) {
+      Integer id = pendingJobs.get(key);
+
+      ProjectJob job = id != null ? projectJobDao.find(id) : null;
+      if (job != null && !job.getStarted()) {
+        job.setEnable(enable);
+        job.save();
+        return job.getID();
+      }
+
+      job = projectJobDao.create(
+          script.getHookId(), scope.getProject().getId(), enable, getLocalNode());
+
+      pendingJobs.put(key, job.getID());
+
+      return job.getID();
+    }
+  }
+
+  // Returns the job if it hasn't been started yet. The same job is scheduled
+  // again if another change has been coalesced into it, it runs only once.
+  private ProjectJob startProjectJob(String key, int id) {
+    synchronized (pendingJobs) {
+      pendingJobs.remove(key, id);
+
+      ProjectJob job = projectJobDao.find(id);
+      if (job == null || job.getStarted()) {
+        return null;
+      }
+
+      job.setStarted(true);
+      job.save();
+
+      return job;
+    }
+  }
+
+  // Enabling or disabling a project hook visits every repository of the
+  // project, which takes too long to be done while the administrator's
+  // request is waiting, so it's done in the background and its progress is
+  // available through the REST API.
+  private void schedule(int id, ProjectScope scope, ExternalHookScript script) {
+    String key = getChangeKey(scope, script);
+
+    projectJobs.execute(() -> {
+      try {
+        securityService
+            .withPermission(Permission.SYS_ADMIN, "External Hooks: project job")
+            .call(() -> {
+              ProjectJob job = startProjectJob(key, id);
+              if (job != null) {
+                run(job, scope, script);
+              }
+
+              return null;
+            });
+      } catch (Exception e) {
+        log.error("unable to process project job {}", id, e);
+
+        ProjectJob failed = projectJobDao.find(id);
+        if (failed != null) {
+          failed.setFinished(true);
+          failed.save();
+        }
+      }
+    });
+  }
+
+  private void run(ProjectJob job, ProjectScope scope, ExternalHookScript script) {
+    job.setTotal(repositoryService.countByProject(scope.getProject()));
+    job.save();
+
+    AtomicInteger current = new AtomicInteger();
+    Runnable progress = () -> {
+      if (current.incrementAndGet() % PROJECT_JOB_SAVE_INTERVAL == 0) {
+        job.setCurrent(current.get());
+        job.save();
+      }
+    };
+
+    if (job.getEnable()) {
+      enable(scope, script, progress);
+    } else {
+      disable(scope, script, progress);
+    }
+
+    job.setCurrent(job.getTotal());
+    job.setFinished(true);
+    job.save();
+  }
+
+  private String getLocalNode() {
+    return clusterService.getInformation().getLocalNode().getId();
+  }
+
+  private static File getHomeDir(StorageService storageService, ClusterService clusterService) {
+    if (clusterService.isAvailable()) {
+      return storageService.getSharedHomeDir().toFile();
+    } else {
+      return storageService.getHomeDir().toFile();
     }
   }
 
@@ -160,18 +644,145 @@ public class HooksCoordinator {
 
     Scope scope = event.getScope();
     if (ScopeUtil.isRepository(scope)) {
-      inherit((RepositoryScope) scope, script);
+      coalesce(scope, script, () -> inherit((RepositoryScope) scope, script));
     }
   }
 
+  // Migration tools create hundreds of repositories a minute, so created
+  // repositories are collected and handled in batches grouped by project:
+  // state and settings of project hooks are looked up once per project
+  // instead of once per repository.
   @EventListener
   public void onRepositoryCreated(RepositoryCreatedEvent event) {
-    RepositoryScope scope = new RepositoryScope(event.getRepository());
-    scripts.forEach((hookId, script) -> {
-      inherit(scope, script);
+    createdRepositories.add(event.getRepository());
+
+    if (!inheritScheduled.compareAndSet(false, true)) {
+      return;
+    }
+
+    coalescer.schedule(
+        () -> {
+          inheritScheduled.set(false);
+
+          try {
+            securityService
+                .withPermission(Permission.SYS_ADMIN, "External Hooks: inherit project hooks")
+                .call(() -> {
+                  inheritCreated();
+                  return null;
+                });
+          } catch (Exception e) {
+            log.error("unable to install project hook scripts on created repositories", e);
+          }
+        },
+        CREATED_REPOSITORIES_MILLIS,
+        TimeUnit.MILLISECONDS);
+  }
+
+  @EventListener
+  public void onRepositoryDeleted(RepositoryDeletedEvent event) {
+    int repositoryId = event.getRepository().getId();
+
+    coalescer.execute(() -> {
+      try {
+        securityService
+            .withPermission(Permission.SYS_ADMIN, "External Hooks: forget deleted repository")
+            .call(() -> {
+              scripts.forEach((hookId, script) -> script.forget(repositoryId));
+              return null;
+            });
+      } catch (Exception e) {
+        log.error("unable to forget hook scripts of deleted repository {}", repositoryId, e);
+      }
     });
   }
 
+  /**
+   * Forgets hook scripts installed on repositories which don't exist anymore. Returns amount of
+   * forgotten installations.
+   */
+  public int sweepOrphans() {
+    return securityService
+        .withPermission(Permission.SYS_ADMIN, "External Hooks: forget orphaned hook scripts")
+        .call(() -> {
+          int orphans = 0;
+          for (ExternalHookScript script : scripts.values()) {
+            orphans += script.sweepOrphans();
+          }
+
+          return orphans;
+        });
+  }
+
+  private void inheritCreated() {
+    Map<Integer, List<Repository>> projects = new LinkedHashMap<>();
+
+    Repository repository;
+    while ((repository = createdRepositories.poll()) != null) {
+      projects
+          .computeIfAbsent(repository.getProject().getId(), id -> new ArrayList<>())
+          .add(repository);
+    }
+
+    projects.forEach((projectId, repositories) -> {
+      ProjectScope projectScope = new ProjectScope(repositories.get(0).getProject());
+
+      scripts.forEach((hookId, script) -> {
+        // A created repository has neither its own hook settings nor
+        // installed hook scripts, so there is nothing to disable like
+        // inherit() does.
+        ProjectHook projectHook = getProjectHook(projectScope, script);
+        if (!projectHook.isInstallable()) {
+          return;
+        }
+
+        for (Repository created : repositories) {
+          script.install(projectHook.settings, projectScope, new RepositoryScope(created));
+        }
+
+        log.debug(
+            "installed project hook scripts {} of {} on {} created repositories",
+            hookId,
+            ScopeUtil.toString(projectScope),
+            repositories.size());
+      });
+    });
+  }
+
+  // State and settings of a project hook are the same for every repository
+  // of the project, so they are looked up once per project and reused for a
+  // short time instead of once per repository. Hook events of the project
+  // drop them on every node.
+  private ProjectHook getProjectHook(ProjectScope scope, ExternalHookScript script) {
+    return projectHooks.get(getProjectHookKey(scope, script), () -> loadProjectHook(scope, script));
+  }
+
+  private ProjectHook loadProjectHook(ProjectScope scope, ExternalHookScript script) {
+    // The user might not have ADMIN privileges to the project while having
+    // ADMIN privileges on the repository
+    return securityService
+        .withPermission(
+            Permission.PROJECT_ADMIN,
+            scope.getProject(),
+            "atlassian-external-hooks: look for project hook")
+        .call(() -> {
+          RepositoryHook hook = repositoryHookService.getByKey(scope, script.getHookKey());
+          if (!hook.isEnabled()) {
+            return new ProjectHook(false, null);
+          }
+
+          GetRepositoryHookSettingsRequest request =
+              (new GetRepositoryHookSettingsRequest.Builder(scope, script.getHookKey())).build();
+          RepositoryHookSettings settings = repositoryHookService.getSettings(request);
+
+          return new ProjectHook(true, settings == null ? null : settings.getSettings());
+        });
+  }
+
+  private String getProjectHookKey(ProjectScope scope, ExternalHookScript script) {
+    return script.getHookId() + ":" + scope.getProject().getId();
+  }
+
   public void validate(
       @Nonnull String hookId,
       @Nonnull Settings settings,
@@ -204,18 +815,64 @@ public class HooksCoordinator {
     }
   }
 
-  public void enable(ProjectScope scope, ExternalHookScript script) {
+  /**
+   * Prepares the project hook to be installed on repositories of the project and returns its
+   * settings, null if there are none. Repositories are not visited, hook scripts are installed on
+   * them by {@link #inherit(RepositoryScope, String, Settings)}.
+   *
+   * @param scope
+   * @param hookKey
+   */
+  public Settings prepare(ProjectScope scope, String hookKey) {
+    ExternalHookScript script = getScript(hookKey);
+    if (script == null) {
+      return null;
+    }
+
     // cover legacy hook scripts created only on project level
     script.uninstallLegacy(scope);
 
     GetRepositoryHookSettingsRequest request =
         (new GetRepositoryHookSettingsRequest.Builder(scope, script.getHookKey())).build();
 
-    RepositoryHookSettings projectSettings = repositoryHookService.getSettings(request);
+    RepositoryHookSettings settings = repositoryHookService.getSettings(request);
+    if (settings == null) {
+      return null;
+    }
+
+    return settings.getSettings();
+  }
+
+  /**
+   * Installs hook script of the project hook on the repository which inherits it.
+   *
+   * @param scope
+   * @param hookKey
+   * @param projectSettings settings returned by {@link #prepare(ProjectScope, String)}
+   */
+  public void inherit(RepositoryScope scope, String hookKey, Settings projectSettings) {
+    ExternalHookScript script = getScript(hookKey);
+    if (script == null) {
+      return;
+    }
+
+    script.install(projectSettings, new ProjectScope(scope.getProject()), scope);
+  }
+
+  public void enable(ProjectScope scope, ExternalHookScript script) {
+    enable(scope, script, () -> {});
+  }
+
+  private void enable(ProjectScope scope, ExternalHookScript script, Runnable progress) {
+    Settings projectSettings = prepare(scope, script.getHookKey());
     if (projectSettings == null) {
       return;
     }
 
+    // Settings of the project are looked up once, but every repository is
+    // checked since it may override the project hook; Bitbucket can't look up
+    // hooks of all repositories of the project at once. The factory job
+    // doesn't come here, it checks repositories while visiting them anyway.
     walker.walk(scope.getProject(), (repository) -> {
       RepositoryScope repositoryScope = new RepositoryScope(repository);
       RepositoryHook hook = repositoryHookService.getByKey(repositoryScope, script.getHookKey());
@@ -223,8 +880,10 @@ public class HooksCoordinator {
       // isEnabled also covers 'inherited' case
       //
       if (hook.isEnabled()) {
-        script.install(projectSettings.getSettings(), scope, repositoryScope);
+        script.install(projectSettings, scope, repositoryScope);
       }
+
+      progress.run();
     });
   }
 
@@ -242,12 +901,26 @@ public class HooksCoordinator {
   }
 
   public void disable(ProjectScope scope, ExternalHookScript script) {
+    disable(scope, script, () -> {});
+  }
+
+  private void disable(ProjectScope scope, ExternalHookScript script, Runnable progress) {
     // cover legacy hook scripts created only on project level
     script.uninstallLegacy(scope);
 
+    // Installed scripts are known, so there is no need to visit every
+    // repository of the project, unless some of them are installed by
+    // previous versions of the plugin and are not migrated yet.
+    if (script.isLegacyMigrated()) {
+      script.uninstall(scope);
+      return;
+    }
+
     walker.walk(scope.getProject(), (repository) -> {
       // RepositoryHook.isEnabled returns true when hook is in state 'enabled (inherited)'
       script.uninstall(scope, new RepositoryScope(repository));
+
+      progress.run();
     });
   }
 
@@ -258,23 +931,38 @@ public class HooksCoordinator {
       return;
     }
 
-    // The user might not have ADMIN privileges to the project while having
-    // ADMIN privileges on the repository
-    securityService
-        .withPermission(
-            Permission.PROJECT_ADMIN,
-            scope.getProject(),
-            "atlassian-external-hooks: look for project hook")
-        .call(() -> {
-          ProjectScope projectScope = new ProjectScope(scope.getProject());
-          RepositoryHook projectHook =
-              repositoryHookService.getByKey(projectScope, script.getHookKey());
-          if (projectHook.isEnabled()) {
-            script.uninstall(projectScope, scope);
-          }
+    ProjectScope projectScope = new ProjectScope(scope.getProject());
+    if (getProjectHook(projectScope, script).enabled) {
+      script.uninstall(projectScope, scope);
+    }
+  }
 
-          return null;
-        });
+  /**
+   * Moves hook script installations made by previous versions of the plugin to the database table
+   * unless it has been done already. It's done only once and visits every repository.
+   */
+  public void migrateLegacy() {
+    scripts.forEach((hookId, script) -> {
+      if (script.isLegacyMigrated()) {
+        return;
+      }
+
+      log.info("migrating installed hook scripts {} to the database", hookId);
+
+      walker.walk(new Walker.Callback() {
+        @Override
+        public void onProject(Project project) {
+          // project hook scripts are installed on repositories
+        }
+
+        @Override
+        public void onRepository(Repository repository) {
+          script.migrateLegacy(new RepositoryScope(repository));
+        }
+      });
+
+      script.setLegacyMigrated();
+    });
   }
 
   public void inherit(RepositoryScope scope, ExternalHookScript script) {
@@ -288,28 +976,24 @@ public class HooksCoordinator {
 
     disable(scope, script);
 
-    // The user might not have ADMIN privileges to the project while having
-    // ADMIN privileges on the repository
-    securityService
-        .withPermission(
-            Permission.PROJECT_ADMIN,
-            scope.getProject(),
-            "atlassian-external-hooks: look for project hook")
-        .call(() -> {
-          ProjectScope projectScope = new ProjectScope(scope.getProject());
-          RepositoryHook projectHook =
-              repositoryHookService.getByKey(projectScope, script.getHookKey());
-          if (projectHook.isEnabled()) {
-            GetRepositoryHookSettingsRequest request =
-                (new GetRepositoryHookSettingsRequest.Builder(scope, script.getHookKey())).build();
-            RepositoryHookSettings projectSettings = repositoryHookService.getSettings(request);
-            if (projectSettings == null) {
-              return null;
-            }
+    ProjectScope projectScope = new ProjectScope(scope.getProject());
+    ProjectHook projectHook = getProjectHook(projectScope, script);
+    if (projectHook.isInstallable()) {
+      script.install(projectHook.settings, projectScope, scope);
+    }
+  }
 
-            script.install(projectSettings.getSettings(), projectScope, scope);
-          }
-          return null;
-        });
+  private static class ProjectHook {
+    private final boolean enabled;
+    private final Settings settings;
+
+    private ProjectHook(boolean enabled, Settings settings) {
+      this.enabled = enabled;
+      this.settings = settings;
+    }
+
+    private boolean isInstallable() {
+      return enabled && settings != null;
+    }
   }
 }
@@ -1,5 +1,9 @@
 package com.ngs.stash.externalhooks;
 
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
 import com.atlassian.bitbucket.hook.repository.RepositoryHook;
 import com.atlassian.bitbucket.hook.repository.RepositoryHookSearchRequest;
 import com.atlassian.bitbucket.hook.repository.RepositoryHookService;
@@ -7,7 +11,7 @@ import com.atlassian.bitbucket.hook.script.HookScript;
 import com.atlassian.bitbucket.scope.ProjectScope;
 import com.atlassian.bitbucket.scope.RepositoryScope;
 import com.atlassian.bitbucket.scope.Scope;
-import com.atlassian.bitbucket.util.Page;
+import com.atlassian.bitbucket.setting.Settings;
 import com.atlassian.bitbucket.util.PageRequest;
 import com.atlassian.bitbucket.util.PageRequestImpl;
 import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
@@ -29,22 +33,51 @@ public class HooksFactory {
   }
 
   /**
-   * Re-creates Atlassian {@link HookScript} for every {@link RepositoryHook}. Works with both
-   * {@link ProjectScope} and {@link RepositoryScope}
+   * Re-creates Atlassian {@link HookScript} for every {@link RepositoryHook} of the project.
+   * Repositories of the project are not visited, returned hooks of the project should be passed to
+   * {@link #install(RepositoryScope, ProjectHooks)} for every repository instead, so state and
+   * settings of project hooks are looked up once per project.
    *
    * @param scope
    */
-  public void install(Scope scope) {
+  public ProjectHooks install(ProjectScope scope) {
     log.debug("creating hook scripts on {}", ScopeUtil.toString(scope));
 
-    RepositoryHookSearchRequest.Builder searchBuilder =
-        new RepositoryHookSearchRequest.Builder(scope);
+    Map<String, Settings> enabled = new HashMap<>();
+    for (RepositoryHook hook : search(scope)) {
+      String hookKey = hook.getDetails().getKey();
+      if (!isInstallable(hook, scope)) {
+        continue;
+      }
+
+      try {
+        Settings settings = hooksCoordinator.prepare(scope, hookKey);
+        if (settings != null) {
+          enabled.put(hookKey, settings);
+        }
+      } catch (Exception e) {
+        log.error("Unable to prepare project hook {}", hookKey, e);
+      }
+    }
 
-    Page<RepositoryHook> page = repositoryHookService.search(
-        searchBuilder.build(), new PageRequestImpl(0, PageRequest.MAX_PAGE_LIMIT));
+    log.info("found {} project hooks on scope {}", enabled.size(), ScopeUtil.toString(scope));
+
+    return new ProjectHooks(enabled);
+  }
+
+  /**
+   * Re-creates Atlassian {@link HookScript} for every {@link RepositoryHook} of the repository,
+   * hooks inherited from the project are installed using the given project hooks.
+   *
+   * @param scope
+   * @param projectHooks hooks of the project returned by {@link #install(ProjectScope)}, {@link
+   *     ProjectHooks#NONE} for personal repositories
+   */
+  public void install(RepositoryScope scope, ProjectHooks projectHooks) {
+    log.debug("creating hook scripts on {}", ScopeUtil.toString(scope));
 
     Integer created = 0;
-    for (RepositoryHook hook : page.getValues()) {
+    for (RepositoryHook hook : search(scope)) {
       String hookKey = hook.getDetails().getKey();
       if (!hookKey.startsWith(Const.PLUGIN_KEY)) {
         continue;
@@ -54,16 +87,17 @@ public class HooksFactory {
         continue;
       }
 
-      if (ScopeUtil.isInheritedEnabled(hook, scope)) {
-        log.info(
-            "hook {} is enabled & configured (inherited of {})",
-            hookKey,
-            ScopeUtil.toString(hook.getScope()));
-        continue;
-      }
-
       try {
-        hooksCoordinator.enable(scope, hookKey);
+        if (ScopeUtil.isInheritedEnabled(hook, scope)) {
+          Settings settings = projectHooks.get(hookKey);
+          if (settings == null) {
+            continue;
+          }
+
+          hooksCoordinator.inherit(scope, hookKey, settings);
+        } else {
+          hooksCoordinator.enable(scope, hookKey);
+        }
 
         created++;
       } catch (Exception e) {
@@ -75,4 +109,54 @@ public class HooksFactory {
 
     log.info("created {} hook scripts on scope {}", created, ScopeUtil.toString(scope));
   }
+
+  private boolean isInstallable(RepositoryHook hook, Scope scope) {
+    String hookKey = hook.getDetails().getKey();
+    if (!hookKey.startsWith(Const.PLUGIN_KEY)) {
+      return false;
+    }
+
+    if (!hook.isEnabled() || !hook.isConfigured()) {
+      return false;
+    }
+
+    if (ScopeUtil.isInheritedEnabled(hook, scope)) {
+      log.info(
+          "hook {} is enabled & configured (inherited of {})",
+          hookKey,
+          ScopeUtil.toString(hook.getScope()));
+      return false;
+    }
+
+    return true;
+  }
+
+  private Iterable<RepositoryHook> search(Scope scope) {
+    RepositoryHookSearchRequest.Builder searchBuilder =
+        new RepositoryHookSearchRequest.Builder(scope);
+
+    return repositoryHookService
+        .search(searchBuilder.build(), new PageRequestImpl(0, PageRequest.MAX_PAGE_LIMIT))
+        .getValues();
+  }
+
+  /** Enabled and configured hooks of a project with their settings. */
+  public static class ProjectHooks {
+    public static final ProjectHooks NONE = new ProjectHooks(Collections.emptyMap());
+
+    private final Map<String, Settings> settings;
+
+    private ProjectHooks(Map<String, Settings> settings) {
+      this.settings = settings;
+    }
+
+    /**
+     * Returns settings of the project hook, null if the hook is not enabled on the project.
+     *
+     * @param hookKey
+     */
+    public Settings get(String hookKey) {
+      return settings.get(hookKey);
+    }
+  }
 }
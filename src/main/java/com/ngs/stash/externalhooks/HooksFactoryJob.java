@@ -0,0 +1,773 @@
+package com.ngs.stash.externalhooks;
+
+import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.Date;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import com.atlassian.bitbucket.cluster.ClusterNode;
+import com.atlassian.bitbucket.cluster.ClusterService;
+import com.atlassian.bitbucket.permission.Permission;
+import com.atlassian.bitbucket.project.PersonalProject;
+import com.atlassian.bitbucket.project.Project;
+import com.atlassian.bitbucket.scope.ProjectScope;
+import com.atlassian.bitbucket.scope.RepositoryScope;
+import com.atlassian.bitbucket.scope.Scope;
+import com.atlassian.bitbucket.user.SecurityService;
+import com.atlassian.scheduler.JobRunner;
+import com.atlassian.scheduler.JobRunnerRequest;
+import com.atlassian.scheduler.JobRunnerResponse;
+import com.atlassian.scheduler.SchedulerService;
+import com.atlassian.scheduler.SchedulerServiceException;
+import com.atlassian.scheduler.config.JobConfig;
+import com.atlassian.scheduler.config.JobId;
+import com.atlassian.scheduler.config.JobRunnerKey;
+import com.atlassian.scheduler.config.RunMode;
+import com.atlassian.scheduler.config.Schedule;
+import com.ngs.stash.externalhooks.ao.FactoryShard;
+import com.ngs.stash.externalhooks.ao.FactoryState;
+import com.ngs.stash.externalhooks.dao.ExternalHooksSettingsDao;
+import com.ngs.stash.externalhooks.dao.FactoryStateDao;
+import com.ngs.stash.externalhooks.util.AdaptiveThrottle;
+import com.ngs.stash.externalhooks.util.ScopeUtil;
+import com.ngs.stash.externalhooks.util.Walker;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Re-creates hook scripts on every project and repository when an administrator applies new
+ * settings to existing hooks.
+ *
+ * <p>The job is split into shards: ranges of project ids and ranges of ids of users whose
+ * personal repositories are processed. Shards are ranges of ids rather than ranges of listed
+ * projects, so projects created or deleted while the job runs don't shift other projects between
+ * shards. One node of the cluster splits the job, then every node claims shards through the
+ * database and processes them, so the job scales with the number of nodes.
+ *
+ * <p>Every shard saves a cursor pointing to its last completed project (or user) together with
+ * its progress. If the node processing a shard dies, the shard is released and claimed by another
+ * node which continues after the cursor instead of starting the shard from scratch.
+ */
+public class HooksFactoryJob implements JobRunner {
+  private static final Logger log = LoggerFactory.getLogger(HooksFactoryJob.class);
+
+  private static final JobRunnerKey RUNNER = JobRunnerKey.of("external-hooks-factory-runner");
+  private static final JobId JOB = JobId.of("external-hooks-factory-job");
+
+  private static final JobRunnerKey WORKER_RUNNER =
+      JobRunnerKey.of("external-hooks-factory-worker");
+  private static final JobId WORKER_JOB = JobId.of("external-hooks-factory-worker-job");
+
+  // how often every node looks for unclaimed shards
+  private static final long WORKER_INTERVAL_MILLIS = 10000L;
+
+  // width of id ranges of shards
+  public static final int PROJECTS_PER_SHARD = 20;
+  public static final int USERS_PER_SHARD = 1000;
+
+  private static final String CURSOR_PROJECT = "project:";
+  private static final String CURSOR_USER = "user:";
+
+  private SchedulerService schedulerService;
+  private SecurityService securityService;
+  private ClusterService clusterService;
+  private FactoryStateDao factoryStateDao;
+  private ExternalHooksSettingsDao settingsDao;
+  private HooksFactory hooksFactory;
+  private Walker walker;
+
+  private final AtomicBoolean working = new AtomicBoolean();
+
+  // Ids of existing projects and users by factory job, they are listed once
+  // per node and job, so shards don't look up ids which don't exist.
+  private final Map<String, Walker.Ids> scans = new ConcurrentHashMap<>();
+
+  public HooksFactoryJob(
+      SchedulerService schedulerService,
+      SecurityService securityService,
+      ClusterService clusterService,
+      FactoryStateDao factoryStateDao,
+      ExternalHooksSettingsDao settingsDao,
+      HooksFactory hooksFactory,
+      Walker walker) {
+    this.schedulerService = schedulerService;
+    this.securityService = securityService;
+    this.clusterService = clusterService;
+    this.factoryStateDao = factoryStateDao;
+    this.settingsDao = settingsDao;
+    this.hooksFactory = hooksFactory;
+    this.walker = walker;
+  }
+
+  /**
+   * Registers the job runner and schedules the worker which claims shards on this node, it should
+   * be done on every node of the cluster.
+   */
+  public void register() {
+    this.schedulerService.registerJobRunner(RUNNER, this);
+    this.schedulerService.registerJobRunner(WORKER_RUNNER, request -> {
+      work();
+      return JobRunnerResponse.success();
+    });
+
+    JobConfig worker = JobConfig.forJobRunnerKey(WORKER_RUNNER)
+        .withSchedule(Schedule.forInterval(
+            WORKER_INTERVAL_MILLIS, new Date(System.currentTimeMillis() + WORKER_INTERVAL_MILLIS)))
+        .withRunMode(RunMode.RUN_LOCALLY);
+
+    try {
+      this.schedulerService.scheduleJob(WORKER_JOB, worker);
+    } catch (SchedulerServiceException e) {
+      log.error("Unable to schedule External Hooks factory worker", e);
+    }
+  }
+
+  /** Stops the worker of this node, shards claimed by it are released on the next start. */
+  public void unregister() {
+    this.schedulerService.unscheduleJob(WORKER_JOB);
+    this.schedulerService.unregisterJobRunner(WORKER_RUNNER);
+    this.schedulerService.unregisterJobRunner(RUNNER);
+  }
+
+  /**
+   * Schedules a new job on start of the plugin unless there is an unfinished one. The unfinished
+   * job covers all scopes anyway and its shards are continued by nodes of the cluster, so a node
+   * restart doesn't start over a job applied by an administrator; shards of the restarted node
+   * itself are released by {@link #resume()}.
+   */
+  public void scheduleIfIdle() {
+    FactoryState[] unfinished = factoryStateDao.findUnfinished();
+    if (unfinished.length > 0) {
+      log.info("factory job {} is not finished yet, continuing it", unfinished[0].getID());
+      return;
+    }
+
+    schedule();
+  }
+
+  /**
+   * Creates a new factory state and schedules the job for it when an administrator applies
+   * settings. Unfinished jobs started before are superseded by the new one since every job covers
+   * all scopes anyway, nodes stop claiming their shards.
+   */
+  public FactoryState schedule() {
+    for (FactoryState unfinished : factoryStateDao.findUnfinished()) {
+      log.info("factory job {} is superseded by a new one", unfinished.getID());
+
+      unfinished.setFinished(true);
+      unfinished.save();
+    }
+
+    FactoryState state = factoryStateDao.create();
+
+    Map<String, Serializable> parameters = new HashMap<String, Serializable>();
+    parameters.put("state_id", state.getID());
+
+    JobConfig job = JobConfig.forJobRunnerKey(RUNNER)
+        .withSchedule(Schedule.runOnce(new Date()))
+        .withRunMode(RunMode.RUN_ONCE_PER_CLUSTER)
+        .withParameters(parameters);
+
+    try {
+      this.schedulerService.scheduleJob(JOB, job);
+    } catch (SchedulerServiceException e) {
+      log.error("Unable to schedule re-creating External Hooks", e);
+    }
+
+    return state;
+  }
+
+  /**
+   * Releases shards which were processed by this node before it has been restarted, so they are
+   * claimed again and continued from their last checkpoint.
+   */
+  public void resume() {
+    String localNode = getLocalNode();
+
+    for (FactoryState state : factoryStateDao.findUnfinished()) {
+      for (FactoryShard shard : factoryStateDao.findShards(state.getID())) {
+        if (shard.getFinished() || !localNode.equals(shard.getNode())) {
+          continue;
+        }
+
+        log.info(
+            "resuming interrupted shard {} of factory job {} from {}",
+            shard.getShard(),
+            state.getID(),
+            shard.getCursor() == null ? "the beginning" : shard.getCursor());
+
+        factoryStateDao.releaseShard(shard);
+      }
+    }
+  }
+
+  /**
+   * Aggregates progress of the job across all of its shards, live progress is used for shards
+   * which are processed by this node. Returns null if there is no such job.
+   *
+   * @param id
+   */
+  public FactorySummary getSummary(int id) {
+    FactoryState state = factoryStateDao.find(id);
+    if (state == null) {
+      return null;
+    }
+
+    if (!state.getStarted() || state.getFinished()) {
+      return new FactorySummary(
+          id, state.getStarted(), state.getFinished(), state.getCurrent(), state.getTotal());
+    }
+
+    int current = 0;
+    int total = 0;
+    int claimedProjects = 0;
+    int claimedProjectScopes = 0;
+
+    for (FactoryShard shard : factoryStateDao.findShards(id)) {
+      FactoryProgress progress = FactoryProgress.find(shard.getID());
+
+      int shardCurrent = progress != null ? progress.getCurrent() : shard.getCurrent();
+      int shardTotal = progress != null ? progress.getTotal() : shard.getTotal();
+
+      current += shardCurrent;
+      total += shardTotal;
+
+      if (shard.getShard() < state.getProjectShards()) {
+        claimedProjects += getProjects(state, shard.getShard());
+        claimedProjectScopes += shardTotal;
+      }
+    }
+
+    // shards which are not claimed yet are estimated using average amount
+    // of scopes per project in claimed shards
+    int unclaimedProjects = Math.max(0, state.getProjects() - claimedProjects);
+    if (claimedProjects == 0) {
+      total += unclaimedProjects;
+    } else {
+      double scopesPerProject = (double) claimedProjectScopes / claimedProjects;
+      total += (int) Math.round(unclaimedProjects * scopesPerProject);
+    }
+
+    return new FactorySummary(id, true, false, current, Math.max(current, total));
+  }
+
+  public JobRunnerResponse runJob(JobRunnerRequest request) {
+    JobConfig config = request.getJobConfig();
+    Map<String, Serializable> parameters = config.getParameters();
+    int stateId = (int) parameters.get("state_id");
+
+    FactoryState state = factoryStateDao.find(Integer.valueOf(stateId));
+    if (state == null) {
+      log.error("scheduled factory state not found: {}", stateId);
+      return JobRunnerResponse.failed("scheduled factory state not found");
+    }
+
+    securityService
+        .withPermission(Permission.SYS_ADMIN, "External Hook Factory: splitting job")
+        .call(() -> {
+          split(state);
+          return null;
+        });
+
+    // this node starts right away, other nodes join it when their workers
+    // wake up
+    work();
+
+    return JobRunnerResponse.success();
+  }
+
+  private void split(FactoryState state) {
+    if (state.getStarted() || state.getFinished()) {
+      return;
+    }
+
+    // Only projects and users are listed, not their repositories, so it
+    // takes just a few queries.
+    Walker.Ids projects = scan(state, false);
+    Walker.Ids users = scan(state, true);
+
+    int projectShards = projects.getMax() / PROJECTS_PER_SHARD + 1;
+    int userShards = users.getMax() / USERS_PER_SHARD + 1;
+
+    state.setNode(getLocalNode());
+    state.setProjects(projects.getCount());
+    state.setProjectShards(projectShards);
+    state.setUserShards(userShards);
+    state.setTotal(projects.getCount());
+    state.setStarted(true);
+    state.save();
+
+    log.info(
+        "factory job {}: {} projects in {} shard(s), {} users in {} shard(s)",
+        state.getID(),
+        projects.getCount(),
+        projectShards,
+        users.getCount(),
+        userShards);
+  }
+
+  private void work() {
+    // the worker is scheduled periodically and also invoked by the job
+    // itself, only one of them claims shards at a time
+    if (!working.compareAndSet(false, true)) {
+      return;
+    }
+
+    try {
+      securityService
+          .withPermission(Permission.SYS_ADMIN, "External Hook Factory: create hooks")
+          .call(() -> {
+            Set<String> unfinished = new HashSet<>();
+            for (FactoryState state : factoryStateDao.findUnfinished()) {
+              unfinished.add(String.valueOf(state.getID()));
+
+              work(state);
+            }
+
+            scans.keySet().removeIf(key -> !unfinished.contains(key.split(":")[0]));
+
+            return null;
+          });
+    } catch (Exception e) {
+      log.error("unable to process factory shards", e);
+    } finally {
+      working.set(false);
+    }
+  }
+
+  private void work(FactoryState state) {
+    releaseAbandoned(state);
+
+    while (true) {
+      FactoryShard shard = claim(state);
+      if (shard == null) {
+        break;
+      }
+
+      try {
+        createHooks(state, shard);
+      } catch (RuntimeException e) {
+        log.error(
+            "unable to process shard {} of factory job {}", shard.getShard(), state.getID(), e);
+
+        // the shard will be claimed again and continued from its checkpoint
+        FactoryProgress progress = FactoryProgress.find(shard.getID());
+        if (progress != null) {
+          progress.stop();
+        }
+
+        factoryStateDao.releaseShard(shard);
+        return;
+      }
+    }
+
+    finishIfCompleted(state);
+  }
+
+  // Releases shards of nodes which have left the cluster.
+  private void releaseAbandoned(FactoryState state) {
+    Set<String> nodes = clusterService.getInformation().getNodes().stream()
+        .map(ClusterNode::getId)
+        .collect(Collectors.toSet());
+
+    for (FactoryShard shard : factoryStateDao.findShards(state.getID())) {
+      if (shard.getFinished() || shard.getNode() == null || nodes.contains(shard.getNode())) {
+        continue;
+      }
+
+      log.info(
+          "shard {} of factory job {} is abandoned by node {}",
+          shard.getShard(),
+          state.getID(),
+          shard.getNode());
+
+      factoryStateDao.releaseShard(shard);
+    }
+  }
+
+  private FactoryShard claim(FactoryState state) {
+    FactoryState actual = factoryStateDao.find(state.getID());
+    if (actual == null || actual.getFinished()) {
+      return null;
+    }
+
+    String localNode = getLocalNode();
+
+    Set<Integer> existing = new HashSet<>();
+    for (FactoryShard shard : factoryStateDao.findShards(state.getID())) {
+      existing.add(shard.getShard());
+
+      if (shard.getFinished() || shard.getNode() != null) {
+        continue;
+      }
+
+      if (factoryStateDao.claimReleased(shard, localNode)) {
+        return shard;
+      }
+    }
+
+    int shards = state.getProjectShards() + state.getUserShards();
+    for (int index = 0; index < shards; index++) {
+      if (existing.contains(index)) {
+        continue;
+      }
+
+      FactoryShard claimed = factoryStateDao.claimShard(state.getID(), index, localNode);
+      if (claimed != null) {
+        return claimed;
+      }
+    }
+
+    return null;
+  }
+
+  private void finishIfCompleted(FactoryState state) {
+    FactoryShard[] shards = factoryStateDao.findShards(state.getID());
+    if (shards.length < state.getProjectShards() + state.getUserShards()) {
+      return;
+    }
+
+    int current = 0;
+    for (FactoryShard shard : shards) {
+      if (!shard.getFinished()) {
+        return;
+      }
+
+      current += shard.getCurrent();
+    }
+
+    FactoryState actual = factoryStateDao.find(state.getID());
+    if (actual == null || actual.getFinished()) {
+      return;
+    }
+
+    actual.setCurrent(current);
+    actual.setTotal(current);
+    actual.setFinished(true);
+    actual.save();
+
+    log.info("factory job {} is finished: {} scopes", state.getID(), current);
+  }
+
+  private void createHooks(FactoryState state, FactoryShard shard) {
+    FactoryProgress progress = FactoryProgress.start(shard);
+
+    walker.setPageSize(settingsDao.getWalkerPageSize());
+    walker.setPrefetch(settingsDao.isWalkerPrefetch());
+
+    boolean personal = shard.getShard() >= state.getProjectShards();
+    boolean last = shard.getShard() == state.getProjectShards() - 1
+        || shard.getShard() == state.getProjectShards() + state.getUserShards() - 1;
+
+    int width = personal ? USERS_PER_SHARD : PROJECTS_PER_SHARD;
+    int fromId =
+        (personal ? shard.getShard() - state.getProjectShards() : shard.getShard()) * width;
+    int toId = fromId + width;
+
+    // The last shard takes everything up to the greatest id at the moment it
+    // starts, so projects and users created after the job has been split are
+    // not missed.
+    Walker.Ids ids;
+    if (last) {
+      ids = personal ? walker.scanUsers() : walker.scanProjects();
+      toId = Math.max(toId, ids.getMax() + 1);
+    } else {
+      ids = scan(state, personal);
+    }
+
+    int resumeId = getResumeId(progress.getCursor(), personal, fromId, toId);
+
+    log.info(
+        "processing shard {} of factory job {}: {} with ids from {} to {}",
+        shard.getShard(),
+        state.getID(),
+        personal ? "users" : "projects",
+        resumeId,
+        toId - 1);
+
+    // Counting every repository takes as long as the apply itself on large
+    // instances, so the total is estimated using average amount of
+    // repositories in visited projects of the shard.
+    int projects = personal ? 0 : ids.getIds(fromId, toId).length;
+
+    if (progress.getCurrent() == 0) {
+      progress.setTotal(projects);
+    }
+
+    // Instead of a fixed delay between scopes the factory adapts its speed
+    // to the observed latency of hook installations: it runs at full speed
+    // when the node is idle and backs off when the node is busy.
+    AdaptiveThrottle throttle =
+        new AdaptiveThrottle(settingsDao.getFactoryRate(), settingsDao.getFactoryConcurrency());
+
+    ExecutorService executor = Executors.newFixedThreadPool(
+        settingsDao.getFactoryConcurrency(), runnable -> {
+          Thread thread = new Thread(runnable, "external-hooks-factory");
+          thread.setDaemon(true);
+          return thread;
+        });
+
+    AtomicInteger visitedProjects =
+        new AtomicInteger(personal ? 0 : ids.getIds(fromId, resumeId).length);
+    Checkpoint checkpoint = new Checkpoint(progress);
+    AtomicReference<HooksFactory.ProjectHooks> projectHooks =
+        new AtomicReference<>(HooksFactory.ProjectHooks.NONE);
+    Deque<Future<?>> installations = new ArrayDeque<>();
+
+    Stream<Scope> scopes;
+    if (personal) {
+      scopes = walker.streamUsers(ids.getIds(resumeId, toId));
+    } else {
+      scopes = walker.streamProjects(ids.getIds(resumeId, toId));
+    }
+
+    try {
+      scopes.forEach(scope -> {
+        // the walk stops at the first failed installation
+        collect(installations, false);
+
+        try {
+          throttle.acquire();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IllegalStateException("factory job has been interrupted", e);
+        }
+
+        Checkpoint.Unit unit = checkpoint.enter(getCursor(scope));
+
+        // Hooks of the project are looked up by the walking thread once and
+        // reused for all of its repositories.
+        HooksFactory.ProjectHooks inherited = projectHooks.get();
+
+        Runnable install = () -> {
+          long started = System.nanoTime();
+          try {
+            if (ScopeUtil.isProject(scope)) {
+              projectHooks.set(hooksFactory.install((ProjectScope) scope));
+            } else {
+              hooksFactory.install((RepositoryScope) scope, inherited);
+            }
+          } finally {
+            throttle.release(System.nanoTime() - started);
+          }
+
+          // a failed unit is never completed, so the cursor stays before it
+          checkpoint.complete(unit);
+
+          int current = progress.increment();
+          if (personal) {
+            progress.setTotal(current);
+          } else {
+            progress.setTotal(estimateTotal(current, visitedProjects.get(), projects));
+          }
+        };
+
+        // Project hook scripts are installed by the walking thread itself,
+        // so they are always installed before hook scripts of repositories
+        // of the project which are installed concurrently.
+        if (ScopeUtil.isProject(scope)) {
+          visitedProjects.incrementAndGet();
+
+          install.run();
+          return;
+        }
+
+        installations.add(executor.submit(() -> securityService
+            .withPermission(Permission.SYS_ADMIN, "External Hook Factory: create hooks")
+            .call(() -> {
+              install.run();
+              return null;
+            })));
+      });
+    } finally {
+      // the shard is released on failure only after all of its installations
+      // are done, so they don't run concurrently with the node claiming it next
+      executor.shutdown();
+
+      try {
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    collect(installations, true);
+
+    checkpoint.close();
+
+    progress.finish();
+  }
+
+  // Rethrows the failure of installations which are done, in order of
+  // submission; waits for all of them when all is set.
+  private void collect(Deque<Future<?>> installations, boolean all) {
+    while (!installations.isEmpty() && (all || installations.peekFirst().isDone())) {
+      try {
+        installations.pollFirst().get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("factory job has been interrupted", e);
+      } catch (ExecutionException e) {
+        throw new IllegalStateException("unable to install hook scripts", e.getCause());
+      }
+    }
+  }
+
+  private Walker.Ids scan(FactoryState state, boolean personal) {
+    return scans.computeIfAbsent(
+        state.getID() + (personal ? ":users" : ":projects"),
+        key -> personal ? walker.scanUsers() : walker.scanProjects());
+  }
+
+  // Returns estimated amount of projects in the shard at the moment the job
+  // has been split into shards. Projects are assumed to be spread evenly over
+  // id ranges of the shards.
+  private int getProjects(FactoryState state, int shard) {
+    if (shard >= state.getProjectShards()) {
+      return 0;
+    }
+
+    return (int) Math.ceil((double) state.getProjects() / state.getProjectShards());
+  }
+
+  // Returns id of the first project (or user) of the shard which is not
+  // completed according to the cursor.
+  private int getResumeId(String cursor, boolean personal, int fromId, int toId) {
+    if (cursor == null) {
+      return fromId;
+    }
+
+    String prefix = personal ? CURSOR_USER : CURSOR_PROJECT;
+
+    int id = cursor.startsWith(prefix) ? parseId(cursor, prefix) : -1;
+    if (id < fromId || id >= toId) {
+      log.warn("factory cursor {} is out of the shard, starting it from scratch", cursor);
+      return fromId;
+    }
+
+    return id + 1;
+  }
+
+  private String getCursor(Scope scope) {
+    if (ScopeUtil.isProject(scope)) {
+      return CURSOR_PROJECT + ((ProjectScope) scope).getProject().getId();
+    }
+
+    Project project = ((RepositoryScope) scope).getProject();
+    if (project instanceof PersonalProject) {
+      return CURSOR_USER + ((PersonalProject) project).getOwner().getId();
+    }
+
+    return CURSOR_PROJECT + project.getId();
+  }
+
+  private int parseId(String cursor, String prefix) {
+    try {
+      return Integer.parseInt(cursor.substring(prefix.length()));
+    } catch (NumberFormatException e) {
+      log.warn("invalid factory cursor: {}", cursor);
+      return -1;
+    }
+  }
+
+  private int estimateTotal(int current, int visitedProjects, int projects) {
+    if (visitedProjects == 0) {
+      return Math.max(current, projects);
+    }
+
+    double scopesPerProject = (double) current / visitedProjects;
+    int remainingProjects = Math.max(0, projects - visitedProjects);
+
+    return current + (int) Math.round(remainingProjects * scopesPerProject);
+  }
+
+  private String getLocalNode() {
+    return clusterService.getInformation().getLocalNode().getId();
+  }
+
+  /**
+   * Tracks completion of units of work (a project with its repositories or personal repositories
+   * of a user) which are walked sequentially but completed concurrently. The cursor is moved only
+   * when all units before it are completed.
+   */
+  private static class Checkpoint {
+    private final FactoryProgress progress;
+    private final Deque<Unit> units = new ArrayDeque<>();
+
+    public Checkpoint(FactoryProgress progress) {
+      this.progress = progress;
+    }
+
+    public synchronized Unit enter(String cursor) {
+      Unit last = units.peekLast();
+      if (last != null && last.cursor.equals(cursor)) {
+        last.pending++;
+        return last;
+      }
+
+      if (last != null) {
+        // walker has moved on to the next unit
+        last.open = false;
+      }
+
+      Unit unit = new Unit(cursor);
+      unit.pending++;
+      units.addLast(unit);
+
+      advance();
+
+      return unit;
+    }
+
+    public synchronized void complete(Unit unit) {
+      unit.pending--;
+
+      advance();
+    }
+
+    public synchronized void close() {
+      Unit last = units.peekLast();
+      if (last != null) {
+        last.open = false;
+      }
+
+      advance();
+    }
+
+    private void advance() {
+      while (!units.isEmpty() && units.peekFirst().isCompleted()) {
+        progress.setCursor(units.pollFirst().cursor);
+      }
+    }
+
+    private static class Unit {
+      private final String cursor;
+      private int pending;
+      private boolean open = true;
+
+      public Unit(String cursor) {
+        this.cursor = cursor;
+      }
+
+      public boolean isCompleted() {
+        return !open && pending == 0;
+      }
+    }
+  }
+}
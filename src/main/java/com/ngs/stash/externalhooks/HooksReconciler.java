@@ -0,0 +1,176 @@
+package com.ngs.stash.externalhooks;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.atlassian.bitbucket.permission.Permission;
+import com.atlassian.bitbucket.project.Project;
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.scope.ProjectScope;
+import com.atlassian.bitbucket.scope.RepositoryScope;
+import com.atlassian.bitbucket.user.ApplicationUser;
+import com.atlassian.bitbucket.user.SecurityService;
+import com.ngs.stash.externalhooks.util.Walker;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Re-creates hook scripts for every project and personal repository using a bounded pool of worker
+ * threads.
+ *
+ * <p>The walk is split into work units: one unit per project (the project itself and then all of
+ * its repositories, in that order) and one unit per user (personal repositories). Units are
+ * executed concurrently, but scopes within a single unit are always processed sequentially, so
+ * project-level hook scripts are installed before the repository-level ones which override them.
+ */
+public class HooksReconciler {
+  private static Logger log = LoggerFactory.getLogger(HooksReconciler.class);
+
+  private static final long PROGRESS_INTERVAL_MILLIS = 10000L;
+
+  private SecurityService securityService;
+  private Walker walker;
+  private HooksFactory hooksFactory;
+
+  public HooksReconciler(
+      SecurityService securityService, Walker walker, HooksFactory hooksFactory) {
+    this.securityService = securityService;
+    this.walker = walker;
+    this.hooksFactory = hooksFactory;
+  }
+
+  public void reconcile(int threads) {
+    Progress progress = new Progress();
+
+    AtomicInteger threadIndex = new AtomicInteger();
+
+    // The queue is bounded so the walker never buffers the whole instance in
+    // memory; when workers can't keep up the walking thread runs the unit by
+    // itself which naturally slows down paging.
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(
+        threads,
+        threads,
+        0L,
+        TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(threads * 2),
+        runnable -> {
+          Thread thread = new Thread(
+              runnable, "external-hooks-reconcile-" + threadIndex.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        },
+        new ThreadPoolExecutor.CallerRunsPolicy());
+
+    log.info("reconciling hook scripts using {} worker thread(s)", threads);
+
+    try {
+      walker.walkProjects(project -> executor.execute(() -> run(progress, project)));
+
+      walker.walkUsers(user -> executor.execute(() -> run(progress, user)));
+    } finally {
+      executor.shutdown();
+    }
+
+    try {
+      while (!executor.awaitTermination(PROGRESS_INTERVAL_MILLIS, TimeUnit.MILLISECONDS)) {
+        progress.report();
+      }
+    } catch (InterruptedException e) {
+      log.warn("interrupted while waiting for reconciliation to finish");
+      executor.shutdownNow();
+      Thread.currentThread().interrupt();
+    }
+
+    progress.summary();
+  }
+
+  private void run(Progress progress, Project project) {
+    run(progress, "project " + project.getKey(), () -> {
+      HooksFactory.ProjectHooks projectHooks = hooksFactory.install(new ProjectScope(project));
+      progress.scope();
+
+      walker.walk(project, (Repository repository) -> {
+        hooksFactory.install(new RepositoryScope(repository), projectHooks);
+        progress.scope();
+      });
+    });
+  }
+
+  private void run(Progress progress, ApplicationUser user) {
+    run(progress, "user " + user.getSlug(), () -> {
+      walker.walk(user, (Repository repository) -> {
+        hooksFactory.install(new RepositoryScope(repository), HooksFactory.ProjectHooks.NONE);
+        progress.scope();
+      });
+    });
+  }
+
+  private void run(Progress progress, String unit, Runnable runnable) {
+    try {
+      // Permissions are bound to the thread, so every unit has to elevate
+      // them on its own.
+      securityService
+          .withPermission(Permission.SYS_ADMIN, "External Hook Plugin: reconciling HookScripts")
+          .call(() -> {
+            runnable.run();
+            return null;
+          });
+    } catch (Exception e) {
+      log.error("unable to reconcile hook scripts of {}", unit, e);
+    }
+
+    progress.unit();
+  }
+
+  private class Progress {
+    private final long started = System.currentTimeMillis();
+    private final AtomicInteger scopes = new AtomicInteger();
+    private final AtomicInteger units = new AtomicInteger();
+    private final AtomicLong reported = new AtomicLong(started);
+
+    public void scope() {
+      scopes.incrementAndGet();
+    }
+
+    public void unit() {
+      units.incrementAndGet();
+
+      long last = reported.get();
+      long now = System.currentTimeMillis();
+      if (now - last >= PROGRESS_INTERVAL_MILLIS && reported.compareAndSet(last, now)) {
+        print(now);
+      }
+    }
+
+    public void report() {
+      long now = System.currentTimeMillis();
+      reported.set(now);
+      print(now);
+    }
+
+    public void summary() {
+      long elapsed = Math.max(1, System.currentTimeMillis() - started);
+
+      log.info(
+          "reconciled {} scopes in {} units in {} ms ({} scopes/sec)",
+          scopes.get(),
+          units.get(),
+          elapsed,
+          String.format("%.1f", scopes.get() * 1000.0 / elapsed));
+    }
+
+    private void print(long now) {
+      long elapsed = Math.max(1, now - started);
+
+      log.info(
+          "reconciliation progress: {} scopes in {} units ({} scopes/sec)",
+          scopes.get(),
+          units.get(),
+          String.format("%.1f", scopes.get() * 1000.0 / elapsed));
+    }
+  }
+}
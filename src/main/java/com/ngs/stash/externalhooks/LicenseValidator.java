@@ -12,24 +12,62 @@ import java.security.Signature;
 import java.security.SignatureException;
 import java.security.interfaces.DSAPublicKey;
 import java.security.spec.X509EncodedKeySpec;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import com.atlassian.bitbucket.cluster.ClusterService;
 import com.atlassian.bitbucket.server.StorageService;
+import com.atlassian.event.api.EventListener;
 import com.atlassian.upm.api.license.PluginLicenseManager;
 import com.atlassian.upm.api.license.entity.PluginLicense;
+import com.atlassian.upm.api.license.event.PluginLicenseChangeEvent;
 import com.atlassian.upm.api.util.Option;
 
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
 
-public class LicenseValidator {
+/**
+ * Checks the license of the plugin, either the signed license file in the (shared) home directory
+ * or the license managed by UPM.
+ *
+ * <p>The instance is shared by the whole plugin. The license file is verified once and then
+ * re-verified only when its modification time or size changes, it's polled instead of watched
+ * because the shared home is often mounted over NFS where file system events are not delivered.
+ */
+public class LicenseValidator implements DisposableBean {
   private static Logger log = LoggerFactory.getLogger(LicenseValidator.class);
   private PluginLicenseManager pluginLicenseManager;
   private StorageService storageService;
   private ClusterService clusterService;
-  private boolean licenseSignatureVerified = false;
+  private volatile boolean licenseSignatureVerified = false;
+
+  // how often the license file is checked for changes
+  private static final long LICENSE_FILE_POLL_MILLIS = 60000L;
+
+  // modification time and size of the verified license file, accessed only
+  // while verifying
+  private long licenseFileModified = -1;
+  private long licenseFileLength = -1;
+
+  // how long the license obtained from UPM is used before it's refreshed
+  private static final long LICENSE_TTL_MILLIS = 60000L;
+
+  // License obtained from UPM, pushes and merge checks use it instead of
+  // asking UPM every time. It's refreshed in the background when it's
+  // expired and right away when the license is changed.
+  private volatile LicenseState licenseState;
+  private final AtomicBoolean refreshing = new AtomicBoolean();
+  private final ScheduledExecutorService refresher =
+      Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "external-hooks-license-refresher");
+        thread.setDaemon(true);
+        return thread;
+      });
 
   private static final String PUBLIC_KEY = ""
       + "MIIDRjCCAjkGByqGSM44BAEwggIsAoIBAQCXNVVR/55M+fXGU6GmpW6RmSIIxi+V\n"
@@ -60,15 +98,41 @@ public class LicenseValidator {
     this.clusterService = clusterService;
 
     this.initLicense();
+
+    this.refresher.scheduleWithFixedDelay(
+        this::checkLicenseFile,
+        LICENSE_FILE_POLL_MILLIS,
+        LICENSE_FILE_POLL_MILLIS,
+        TimeUnit.MILLISECONDS);
   }
 
-  private void initLicense() {
+  private synchronized void initLicense() {
+    File license = getLicenseFile();
+    licenseFileModified = license.lastModified();
+    licenseFileLength = license.length();
+
     licenseSignatureVerified = verifyLicense();
     if (licenseSignatureVerified) {
       log.warn("license signature verified");
     }
   }
 
+  // Re-verifies the license file if it has been added, changed or removed.
+  private void checkLicenseFile() {
+    try {
+      File license = getLicenseFile();
+      if (license.lastModified() == licenseFileModified && license.length() == licenseFileLength) {
+        return;
+      }
+
+      log.info("license file has been changed, verifying");
+
+      initLicense();
+    } catch (Exception e) {
+      log.error("unable to check license file", e);
+    }
+  }
+
   public boolean verifyLicense() {
     Signature dsa;
     try {
@@ -113,8 +177,7 @@ public class LicenseValidator {
   }
 
   public String readPluginLicense() {
-    File homeDir = getHomeDir();
-    File license = new File(homeDir.getAbsolutePath(), Const.PLUGIN_KEY + ".license");
+    File license = getLicenseFile();
     if (!license.exists()) {
       return null;
     }
@@ -135,6 +198,10 @@ public class LicenseValidator {
     return pubKey;
   }
 
+  private File getLicenseFile() {
+    return new File(getHomeDir().getAbsolutePath(), Const.PLUGIN_KEY + ".license");
+  }
+
   private File getHomeDir() {
     if (this.clusterService.isAvailable()) {
       return this.storageService.getSharedHomeDir().toFile();
@@ -147,8 +214,8 @@ public class LicenseValidator {
     if (licenseSignatureVerified) {
       return true;
     }
-    Option<PluginLicense> licenseOption = pluginLicenseManager.getLicense();
-    return licenseOption.isDefined();
+
+    return getLicenseState().defined;
   }
 
   public boolean isValid() {
@@ -156,13 +223,68 @@ public class LicenseValidator {
       return true;
     }
 
+    return getLicenseState().valid;
+  }
+
+  @Override
+  public void destroy() {
+    refresher.shutdownNow();
+  }
+
+  @EventListener
+  public void onLicenseChanged(PluginLicenseChangeEvent event) {
+    if (!Const.PLUGIN_KEY.equals(event.getPluginKey())) {
+      return;
+    }
+
+    log.info("license has been changed, refreshing");
+
+    this.licenseState = loadLicenseState();
+  }
+
+  private LicenseState getLicenseState() {
+    LicenseState state = this.licenseState;
+    if (state == null) {
+      state = loadLicenseState();
+      this.licenseState = state;
+      return state;
+    }
+
+    // the expired license is still used until the refreshed one is loaded
+    if (System.currentTimeMillis() - state.loadedAt > LICENSE_TTL_MILLIS
+        && refreshing.compareAndSet(false, true)) {
+      refresher.execute(() -> {
+        try {
+          this.licenseState = loadLicenseState();
+        } catch (Exception e) {
+          log.error("unable to refresh license", e);
+        } finally {
+          refreshing.set(false);
+        }
+      });
+    }
+
+    return state;
+  }
+
+  private LicenseState loadLicenseState() {
     Option<PluginLicense> licenseOption = pluginLicenseManager.getLicense();
     if (!licenseOption.isDefined()) {
-      return false;
+      return new LicenseState(false, false);
     }
 
-    PluginLicense pluginLicense = licenseOption.get();
-    return pluginLicense.isValid();
+    return new LicenseState(true, licenseOption.get().isValid());
+  }
+
+  private static class LicenseState {
+    private final boolean defined;
+    private final boolean valid;
+    private final long loadedAt = System.currentTimeMillis();
+
+    private LicenseState(boolean defined, boolean valid) {
+      this.defined = defined;
+      this.valid = valid;
+    }
   }
 
   private class License {
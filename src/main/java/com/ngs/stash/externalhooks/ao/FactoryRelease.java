@@ -0,0 +1,24 @@
+package com.ngs.stash.externalhooks.ao;
+
+import net.java.ao.Entity;
+import net.java.ao.Preload;
+import net.java.ao.schema.NotNull;
+import net.java.ao.schema.Table;
+import net.java.ao.schema.Unique;
+
+/**
+ * Marker of a {@link FactoryShard} which has been released by its node and can be claimed again.
+ *
+ * <p>Active Objects can't update a row conditionally, but it reports how many rows are deleted, so
+ * the node which deletes the marker is the only one which gets the shard.
+ */
+@Table("factory_release")
+@Preload
+public interface FactoryRelease extends Entity {
+  /** Id of the released {@link FactoryShard}. */
+  @NotNull
+  @Unique
+  int getShardId();
+
+  void setShardId(int shardId);
+}
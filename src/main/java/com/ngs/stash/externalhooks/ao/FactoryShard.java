@@ -0,0 +1,63 @@
+package com.ngs.stash.externalhooks.ao;
+
+import net.java.ao.Entity;
+import net.java.ao.Preload;
+import net.java.ao.schema.Indexed;
+import net.java.ao.schema.NotNull;
+import net.java.ao.schema.Table;
+import net.java.ao.schema.Unique;
+
+/**
+ * Part of the factory job claimed by one of the cluster nodes: a range of project ids or a range
+ * of ids of users whose personal repositories are processed.
+ *
+ * <p>Rows are created by nodes claiming the shard, so the unique {@link #getShardKey()} guarantees
+ * that only one node gets every shard. Released shards are claimed through {@link
+ * FactoryRelease}.
+ */
+@Table("factory_shard")
+@Preload({"STATE_ID", "SHARD", "NODE", "CURSOR", "CURRENT", "TOTAL", "FINISHED"})
+public interface FactoryShard extends Entity {
+  /** "STATE_ID:SHARD" */
+  @NotNull
+  @Unique
+  String getShardKey();
+
+  @NotNull
+  @Indexed
+  int getStateId();
+
+  /** Index of the shard, see {@link FactoryState#getProjectShards()}. */
+  int getShard();
+
+  /** Id of the cluster node which processes the shard, null if the node is gone. */
+  String getNode();
+
+  /**
+   * Last completed unit of work in form of "project:ID" or "user:ID", all units of the shard
+   * walked before it are completed as well.
+   */
+  String getCursor();
+
+  int getCurrent();
+
+  int getTotal();
+
+  boolean getFinished();
+
+  void setShardKey(String shardKey);
+
+  void setStateId(int stateId);
+
+  void setShard(int shard);
+
+  void setNode(String node);
+
+  void setCursor(String cursor);
+
+  void setCurrent(int current);
+
+  void setTotal(int total);
+
+  void setFinished(boolean finished);
+}
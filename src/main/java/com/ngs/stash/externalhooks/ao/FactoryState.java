@@ -5,7 +5,16 @@ import net.java.ao.Preload;
 import net.java.ao.schema.Table;
 
 @Table("factory_state")
-@Preload({"STARTED", "FINISHED", "CURRENT", "TOTAL"})
+@Preload({
+  "STARTED",
+  "FINISHED",
+  "CURRENT",
+  "TOTAL",
+  "NODE",
+  "PROJECTS",
+  "PROJECT_SHARDS",
+  "USER_SHARDS"
+})
 public interface FactoryState extends Entity {
   boolean getStarted();
 
@@ -15,6 +24,20 @@ public interface FactoryState extends Entity {
 
   int getTotal();
 
+  /** Id of the cluster node which splits the job into shards. */
+  String getNode();
+
+  /** Amount of projects at the moment the job has been split into shards. */
+  int getProjects();
+
+  /**
+   * Amount of shards of projects, shards with indexes from 0 to this value (exclusive) are shards
+   * of projects, the following {@link #getUserShards()} ones are shards of users.
+   */
+  int getProjectShards();
+
+  int getUserShards();
+
   void setStarted(boolean started);
 
   void setFinished(boolean finished);
@@ -22,4 +45,12 @@ public interface FactoryState extends Entity {
   void setCurrent(int current);
 
   void setTotal(int total);
+
+  void setNode(String node);
+
+  void setProjects(int projects);
+
+  void setProjectShards(int projectShards);
+
+  void setUserShards(int userShards);
 }
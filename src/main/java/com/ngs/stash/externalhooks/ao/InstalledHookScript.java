@@ -0,0 +1,70 @@
+package com.ngs.stash.externalhooks.ao;
+
+import java.util.Date;
+
+import net.java.ao.Entity;
+import net.java.ao.Preload;
+import net.java.ao.schema.Indexed;
+import net.java.ao.schema.NotNull;
+import net.java.ao.schema.Table;
+import net.java.ao.schema.Unique;
+
+/**
+ * HookScript installed by the plugin on a repository, either because of the repository's own hook
+ * settings or because of settings inherited from its project. The same HookScript may be shared
+ * by several installations with the same contents.
+ */
+@Table("installed_script")
+@Preload
+public interface InstalledHookScript extends Entity {
+  /** Unique key of the installation: hook, project (if inherited) and repository. */
+  @NotNull
+  @Unique
+  String getScopeKey();
+
+  @NotNull
+  @Indexed
+  String getHookId();
+
+  /** Id of the project whose settings are installed, null for repository's own settings. */
+  @Indexed
+  Integer getProjectId();
+
+  @NotNull
+  @Indexed
+  int getRepositoryId();
+
+  @NotNull
+  @Indexed
+  long getScriptId();
+
+  /** Hash of the script contents, null for scripts which have never been shared. */
+  @Indexed
+  String getContentHash();
+
+  /** Comma-separated ids of triggers the script is configured with. */
+  String getTriggers();
+
+  /** Desired state the script has been configured with, null if configuration is incomplete. */
+  String getFingerprint();
+
+  Date getInstalledAt();
+
+  void setScopeKey(String scopeKey);
+
+  void setHookId(String hookId);
+
+  void setProjectId(Integer projectId);
+
+  void setRepositoryId(int repositoryId);
+
+  void setScriptId(long scriptId);
+
+  void setContentHash(String contentHash);
+
+  void setTriggers(String triggers);
+
+  void setFingerprint(String fingerprint);
+
+  void setInstalledAt(Date installedAt);
+}
@@ -0,0 +1,59 @@
+package com.ngs.stash.externalhooks.ao;
+
+import java.util.Date;
+
+import net.java.ao.Entity;
+import net.java.ao.Preload;
+import net.java.ao.schema.Indexed;
+import net.java.ao.schema.NotNull;
+import net.java.ao.schema.Table;
+
+/**
+ * Background job which installs (or uninstalls) project hook scripts on all repositories of the
+ * project after the project hook has been enabled (or disabled).
+ */
+@Table("project_job")
+@Preload
+public interface ProjectJob extends Entity {
+  @NotNull
+  @Indexed
+  String getHookId();
+
+  @NotNull
+  @Indexed
+  int getProjectId();
+
+  /** True if hook scripts are installed, false if they are uninstalled. */
+  boolean getEnable();
+
+  /** Id of the cluster node which runs the job. */
+  String getNode();
+
+  boolean getStarted();
+
+  boolean getFinished();
+
+  int getCurrent();
+
+  int getTotal();
+
+  Date getCreatedAt();
+
+  void setHookId(String hookId);
+
+  void setProjectId(int projectId);
+
+  void setEnable(boolean enable);
+
+  void setNode(String node);
+
+  void setStarted(boolean started);
+
+  void setFinished(boolean finished);
+
+  void setCurrent(int current);
+
+  void setTotal(int total);
+
+  void setCreatedAt(Date createdAt);
+}
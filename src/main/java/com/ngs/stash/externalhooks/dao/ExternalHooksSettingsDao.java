@@ -3,27 +3,58 @@ package com.ngs.stash.externalhooks.dao;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 
 import com.atlassian.bitbucket.hook.repository.RepositoryHookTrigger;
 import com.atlassian.bitbucket.hook.repository.StandardRepositoryHookTrigger;
+import com.atlassian.bitbucket.util.PageRequest;
+import com.atlassian.cache.Cache;
+import com.atlassian.cache.CacheManager;
+import com.atlassian.cache.CacheSettingsBuilder;
 import com.atlassian.sal.api.pluginsettings.PluginSettings;
 import com.atlassian.sal.api.pluginsettings.PluginSettingsFactory;
+import com.google.common.collect.ImmutableList;
 import com.ngs.stash.externalhooks.Const;
 import com.ngs.stash.externalhooks.DefaultSettings;
+import com.ngs.stash.externalhooks.ExternalHookSettingsPerformance;
 import com.ngs.stash.externalhooks.ExternalHookSettingsTriggers;
 import com.ngs.stash.externalhooks.ExternalHooksSettings;
+import com.ngs.stash.externalhooks.hook.AsyncHookQueue.OverflowPolicy;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public class ExternalHooksSettingsDao {
   private static Logger log = LoggerFactory.getLogger(ExternalHooksSettingsDao.class);
+  private static final long TRIGGERS_EXPIRE_AFTER_WRITE_MINUTES = 60;
+
   private PluginSettings pluginSettings;
 
+  // Parsed trigger lists, they are read on every hook script installation.
+  private Cache<String, List<RepositoryHookTrigger>> triggers;
+
   public ExternalHooksSettingsDao(PluginSettingsFactory pluginSettingsFactory) {
     this.pluginSettings = pluginSettingsFactory.createGlobalSettings();
   }
 
+  /**
+   * Creates DAO which caches parsed hook triggers in a cluster-wide cache, {@link
+   * #save(ExternalHooksSettings)} invalidates them on all nodes.
+   */
+  public ExternalHooksSettingsDao(
+      PluginSettingsFactory pluginSettingsFactory, CacheManager cacheManager) {
+    this(pluginSettingsFactory);
+
+    this.triggers = cacheManager.getCache(
+        Const.PLUGIN_KEY + ":hook-triggers",
+        component -> ImmutableList.copyOf(loadHookTriggers(component)),
+        new CacheSettingsBuilder()
+            .remote()
+            .replicateViaInvalidation()
+            .expireAfterWrite(TRIGGERS_EXPIRE_AFTER_WRITE_MINUTES, TimeUnit.MINUTES)
+            .build());
+  }
+
   public ExternalHooksSettingsDao(PluginSettings pluginSettings) {
     this.pluginSettings = pluginSettings;
   }
@@ -35,6 +66,20 @@ public class ExternalHooksSettingsDao {
     settings.triggers.post_receive = getIds(getPostReceiveHookTriggers());
     settings.triggers.merge_check = getIds(getMergeCheckHookTriggers());
 
+    settings.performance.reconcile_threads = getReconcileThreads();
+    settings.performance.walker_page_size = getWalkerPageSize();
+    settings.performance.walker_prefetch = isWalkerPrefetch();
+    settings.performance.factory_rate = getFactoryRate();
+    settings.performance.factory_concurrency = getFactoryConcurrency();
+    settings.performance.async_workers = getAsyncWorkers();
+    settings.performance.async_queue_size = getAsyncQueueSize();
+    settings.performance.async_overflow = getAsyncOverflow().getId();
+    settings.performance.async_timeout = getAsyncTimeout();
+    settings.performance.concurrency_global = getConcurrencyGlobal();
+    settings.performance.concurrency_hook = getConcurrencyHook();
+    settings.performance.concurrency_repository = getConcurrencyRepository();
+    settings.performance.concurrency_wait = getConcurrencyWait();
+
     return settings;
   }
 
@@ -45,6 +90,20 @@ public class ExternalHooksSettingsDao {
     settings.triggers.post_receive = getIds(DefaultSettings.PostReceiveHookTriggers);
     settings.triggers.merge_check = getIds(DefaultSettings.MergeCheckHookTriggers);
 
+    settings.performance.reconcile_threads = DefaultSettings.ReconcileThreads;
+    settings.performance.walker_page_size = DefaultSettings.WalkerPageSize;
+    settings.performance.walker_prefetch = DefaultSettings.WalkerPrefetch;
+    settings.performance.factory_rate = DefaultSettings.FactoryRate;
+    settings.performance.factory_concurrency = DefaultSettings.FactoryConcurrency;
+    settings.performance.async_workers = DefaultSettings.AsyncWorkers;
+    settings.performance.async_queue_size = DefaultSettings.AsyncQueueSize;
+    settings.performance.async_overflow = DefaultSettings.AsyncOverflow.getId();
+    settings.performance.async_timeout = DefaultSettings.AsyncTimeout;
+    settings.performance.concurrency_global = DefaultSettings.ConcurrencyGlobal;
+    settings.performance.concurrency_hook = DefaultSettings.ConcurrencyHook;
+    settings.performance.concurrency_repository = DefaultSettings.ConcurrencyRepository;
+    settings.performance.concurrency_wait = DefaultSettings.ConcurrencyWait;
+
     return settings;
   }
 
@@ -68,18 +127,226 @@ public class ExternalHooksSettingsDao {
           getPluginSettingsKey("merge_check"),
           sanitize(triggers.merge_check, DefaultSettings.MergeCheckHookTriggers));
     }
+
+    if (this.triggers != null) {
+      this.triggers.removeAll();
+    }
+
+    ExternalHookSettingsPerformance performance = settings.performance;
+    if (performance == null) {
+      return;
+    }
+
+    if (performance.reconcile_threads != null) {
+      pluginSettings.put(
+          getPluginSettingsKey("reconcile_threads"),
+          String.valueOf(
+              clamp(performance.reconcile_threads, 1, DefaultSettings.MaxReconcileThreads)));
+    }
+
+    if (performance.walker_page_size != null) {
+      pluginSettings.put(
+          getPluginSettingsKey("walker_page_size"),
+          String.valueOf(clamp(performance.walker_page_size, 1, PageRequest.MAX_PAGE_LIMIT)));
+    }
+
+    if (performance.walker_prefetch != null) {
+      pluginSettings.put(
+          getPluginSettingsKey("walker_prefetch"), String.valueOf(performance.walker_prefetch));
+    }
+
+    if (performance.factory_rate != null) {
+      pluginSettings.put(
+          getPluginSettingsKey("factory_rate"),
+          String.valueOf(Math.max(0, performance.factory_rate)));
+    }
+
+    if (performance.factory_concurrency != null) {
+      pluginSettings.put(
+          getPluginSettingsKey("factory_concurrency"),
+          String.valueOf(
+              clamp(performance.factory_concurrency, 1, DefaultSettings.MaxFactoryConcurrency)));
+    }
+
+    if (performance.async_workers != null) {
+      pluginSettings.put(
+          getPluginSettingsKey("async_workers"),
+          String.valueOf(clamp(performance.async_workers, 1, DefaultSettings.MaxAsyncWorkers)));
+    }
+
+    if (performance.async_queue_size != null) {
+      pluginSettings.put(
+          getPluginSettingsKey("async_queue_size"),
+          String.valueOf(
+              clamp(performance.async_queue_size, 1, DefaultSettings.MaxAsyncQueueSize)));
+    }
+
+    if (performance.async_overflow != null
+        && OverflowPolicy.fromId(performance.async_overflow) != null) {
+      pluginSettings.put(getPluginSettingsKey("async_overflow"), performance.async_overflow);
+    }
+
+    if (performance.async_timeout != null) {
+      pluginSettings.put(
+          getPluginSettingsKey("async_timeout"),
+          String.valueOf(clamp(performance.async_timeout, 1, DefaultSettings.MaxAsyncTimeout)));
+    }
+
+    if (performance.concurrency_global != null) {
+      pluginSettings.put(
+          getPluginSettingsKey("concurrency_global"),
+          String.valueOf(clamp(performance.concurrency_global, 0, DefaultSettings.MaxConcurrency)));
+    }
+
+    if (performance.concurrency_hook != null) {
+      pluginSettings.put(
+          getPluginSettingsKey("concurrency_hook"),
+          String.valueOf(clamp(performance.concurrency_hook, 0, DefaultSettings.MaxConcurrency)));
+    }
+
+    if (performance.concurrency_repository != null) {
+      pluginSettings.put(
+          getPluginSettingsKey("concurrency_repository"),
+          String.valueOf(
+              clamp(performance.concurrency_repository, 0, DefaultSettings.MaxConcurrency)));
+    }
+
+    if (performance.concurrency_wait != null) {
+      pluginSettings.put(
+          getPluginSettingsKey("concurrency_wait"),
+          String.valueOf(
+              clamp(performance.concurrency_wait, 0, DefaultSettings.MaxConcurrencyWait)));
+    }
   }
 
   public List<RepositoryHookTrigger> getPreReceiveHookTriggers() {
-    return getHookTriggers("pre_receive", DefaultSettings.PreReceiveHookTriggers);
+    return getHookTriggers("pre_receive");
   }
 
   public List<RepositoryHookTrigger> getPostReceiveHookTriggers() {
-    return getHookTriggers("post_receive", DefaultSettings.PostReceiveHookTriggers);
+    return getHookTriggers("post_receive");
   }
 
   public List<RepositoryHookTrigger> getMergeCheckHookTriggers() {
-    return getHookTriggers("merge_check", DefaultSettings.MergeCheckHookTriggers);
+    return getHookTriggers("merge_check");
+  }
+
+  /**
+   * Number of worker threads used to reconcile hook scripts of projects and personal repositories
+   * on plugin start.
+   */
+  public int getReconcileThreads() {
+    return clamp(
+        getInteger("reconcile_threads", DefaultSettings.ReconcileThreads),
+        1,
+        DefaultSettings.MaxReconcileThreads);
+  }
+
+  /** Amount of projects, users and repositories requested at once while walking the instance. */
+  public int getWalkerPageSize() {
+    return clamp(
+        getInteger("walker_page_size", DefaultSettings.WalkerPageSize),
+        1,
+        PageRequest.MAX_PAGE_LIMIT);
+  }
+
+  /** Whether next page should be loaded while the current one is processed. */
+  public boolean isWalkerPrefetch() {
+    return getBoolean("walker_prefetch", DefaultSettings.WalkerPrefetch);
+  }
+
+  /** Target amount of scopes per second processed by the factory job, 0 means unlimited. */
+  public int getFactoryRate() {
+    return Math.max(0, getInteger("factory_rate", DefaultSettings.FactoryRate));
+  }
+
+  /** Maximum amount of scopes processed by the factory job at the same time. */
+  public int getFactoryConcurrency() {
+    return clamp(
+        getInteger("factory_concurrency", DefaultSettings.FactoryConcurrency),
+        1,
+        DefaultSettings.MaxFactoryConcurrency);
+  }
+
+  /** Maximum amount of asynchronous post-receive hooks executed at the same time on the node. */
+  public int getAsyncWorkers() {
+    return clamp(
+        getInteger("async_workers", DefaultSettings.AsyncWorkers),
+        1,
+        DefaultSettings.MaxAsyncWorkers);
+  }
+
+  /**
+   * Maximum amount of asynchronous post-receive hooks waiting for a worker, changes are applied
+   * after restart.
+   */
+  public int getAsyncQueueSize() {
+    return clamp(
+        getInteger("async_queue_size", DefaultSettings.AsyncQueueSize),
+        1,
+        DefaultSettings.MaxAsyncQueueSize);
+  }
+
+  /** What to do with asynchronous post-receive hooks when the queue is full. */
+  public OverflowPolicy getAsyncOverflow() {
+    Object raw = pluginSettings.get(getPluginSettingsKey("async_overflow"));
+    if (raw == null) {
+      return DefaultSettings.AsyncOverflow;
+    }
+
+    OverflowPolicy policy = OverflowPolicy.fromId(raw.toString().trim());
+    if (policy == null) {
+      log.error("unrecognized async_overflow value in settings: {}", raw);
+      return DefaultSettings.AsyncOverflow;
+    }
+
+    return policy;
+  }
+
+  /**
+   * Seconds an asynchronous post-receive hook may run, it's killed and counted as failed after
+   * that.
+   */
+  public int getAsyncTimeout() {
+    return clamp(
+        getInteger("async_timeout", DefaultSettings.AsyncTimeout),
+        1,
+        DefaultSettings.MaxAsyncTimeout);
+  }
+
+  /** Maximum amount of external hooks executed at the same time on the node, 0 is unlimited. */
+  public int getConcurrencyGlobal() {
+    return clamp(
+        getInteger("concurrency_global", DefaultSettings.ConcurrencyGlobal),
+        0,
+        DefaultSettings.MaxConcurrency);
+  }
+
+  /** Maximum amount of executions of the same hook at the same time on the node. */
+  public int getConcurrencyHook() {
+    return clamp(
+        getInteger("concurrency_hook", DefaultSettings.ConcurrencyHook),
+        0,
+        DefaultSettings.MaxConcurrency);
+  }
+
+  /** Maximum amount of hooks executed for the same repository at the same time on the node. */
+  public int getConcurrencyRepository() {
+    return clamp(
+        getInteger("concurrency_repository", DefaultSettings.ConcurrencyRepository),
+        0,
+        DefaultSettings.MaxConcurrency);
+  }
+
+  /**
+   * Maximum amount of seconds an execution waits for concurrency limits, the operation is rejected
+   * afterwards.
+   */
+  public int getConcurrencyWait() {
+    return clamp(
+        getInteger("concurrency_wait", DefaultSettings.ConcurrencyWait),
+        0,
+        DefaultSettings.MaxConcurrencyWait);
   }
 
   private List<String> sanitize(List<String> items, List<RepositoryHookTrigger> defaults) {
@@ -94,6 +361,27 @@ public class ExternalHooksSettingsDao {
     return prefix + component;
   }
 
+  private List<RepositoryHookTrigger> getHookTriggers(String component) {
+    if (triggers == null) {
+      return loadHookTriggers(component);
+    }
+
+    return triggers.get(component);
+  }
+
+  private List<RepositoryHookTrigger> loadHookTriggers(String component) {
+    switch (component) {
+      case "pre_receive":
+        return getHookTriggers(component, DefaultSettings.PreReceiveHookTriggers);
+      case "post_receive":
+        return getHookTriggers(component, DefaultSettings.PostReceiveHookTriggers);
+      case "merge_check":
+        return getHookTriggers(component, DefaultSettings.MergeCheckHookTriggers);
+      default:
+        throw new IllegalArgumentException("unknown hook triggers: " + component);
+    }
+  }
+
   @SuppressWarnings("unchecked")
   private List<RepositoryHookTrigger> getHookTriggers(
       String component, List<RepositoryHookTrigger> defaults) {
@@ -126,6 +414,33 @@ public class ExternalHooksSettingsDao {
     return result;
   }
 
+  private int getInteger(String component, int defaults) {
+    Object raw = pluginSettings.get(getPluginSettingsKey(component));
+    if (raw == null) {
+      return defaults;
+    }
+
+    try {
+      return Integer.parseInt(raw.toString().trim());
+    } catch (NumberFormatException e) {
+      log.error("unrecognized {} value in settings: {}", component, raw);
+      return defaults;
+    }
+  }
+
+  private boolean getBoolean(String component, boolean defaults) {
+    Object raw = pluginSettings.get(getPluginSettingsKey(component));
+    if (raw == null) {
+      return defaults;
+    }
+
+    return Boolean.parseBoolean(raw.toString().trim());
+  }
+
+  private int clamp(int value, int min, int max) {
+    return Math.max(min, Math.min(max, value));
+  }
+
   private List<String> getIds(List<RepositoryHookTrigger> items) {
     List<String> result = new ArrayList<String>();
     for (RepositoryHookTrigger item : items) {
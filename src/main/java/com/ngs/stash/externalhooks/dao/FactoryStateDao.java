@@ -1,8 +1,11 @@
 package com.ngs.stash.externalhooks.dao;
 
 import com.atlassian.activeobjects.external.ActiveObjects;
+import com.ngs.stash.externalhooks.ao.FactoryRelease;
+import com.ngs.stash.externalhooks.ao.FactoryShard;
 import com.ngs.stash.externalhooks.ao.FactoryState;
 
+import net.java.ao.DBParam;
 import net.java.ao.Query;
 
 public class FactoryStateDao {
@@ -25,4 +28,93 @@ public class FactoryStateDao {
 
     return states[0];
   }
+
+  public FactoryState[] findUnfinished() {
+    return ao.find(
+        FactoryState.class,
+        Query.select()
+            .from(FactoryState.class)
+            .where("STARTED = ? AND FINISHED = ?", true, false)
+            .order("ID ASC"));
+  }
+
+  public FactoryShard[] findShards(int stateId) {
+    return ao.find(
+        FactoryShard.class,
+        Query.select()
+            .from(FactoryShard.class)
+            .where("STATE_ID = ?", stateId)
+            .order("SHARD ASC"));
+  }
+
+  /**
+   * Claims the shard for the given node. Returns null if the shard has been already claimed by
+   * another node.
+   *
+   * @param stateId
+   * @param shard
+   * @param node
+   */
+  public FactoryShard claimShard(int stateId, int shard, String node) {
+    String key = stateId + ":" + shard;
+
+    try {
+      return ao.create(
+          FactoryShard.class,
+          new DBParam("SHARD_KEY", key),
+          new DBParam("STATE_ID", stateId),
+          new DBParam("SHARD", shard),
+          new DBParam("NODE", node));
+    } catch (RuntimeException e) {
+      // Active Objects doesn't tell unique constraint violations from other
+      // errors, the shard exists only if it has been created by another node
+      if (ao.count(FactoryShard.class, Query.select().where("SHARD_KEY = ?", key)) == 0) {
+        throw e;
+      }
+
+      return null;
+    }
+  }
+
+  /**
+   * Releases the shard, so it's claimed again by any node with {@link #claimReleased}.
+   *
+   * @param shard
+   */
+  public void releaseShard(FactoryShard shard) {
+    // the marker is created first, so the shard which is seen without node
+    // always can be claimed; it may exist already if the previous release
+    // has been interrupted
+    try {
+      ao.create(FactoryRelease.class, new DBParam("SHARD_ID", shard.getID()));
+    } catch (RuntimeException e) {
+      // the shard is already released unless it's another error, see claimShard()
+      int released =
+          ao.count(FactoryRelease.class, Query.select().where("SHARD_ID = ?", shard.getID()));
+      if (released == 0) {
+        throw e;
+      }
+    }
+
+    shard.setNode(null);
+    shard.save();
+  }
+
+  /**
+   * Claims the released shard for the given node. Returns false if the shard has been already
+   * claimed by another node.
+   *
+   * @param shard
+   * @param node
+   */
+  public boolean claimReleased(FactoryShard shard, String node) {
+    if (ao.deleteWithSQL(FactoryRelease.class, "SHARD_ID = ?", shard.getID()) != 1) {
+      return false;
+    }
+
+    shard.setNode(node);
+    shard.save();
+
+    return true;
+  }
 }
@@ -0,0 +1,213 @@
+package com.ngs.stash.externalhooks.dao;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import com.atlassian.activeobjects.external.ActiveObjects;
+import com.atlassian.cache.Cache;
+import com.atlassian.cache.CacheManager;
+import com.atlassian.cache.CacheSettings;
+import com.atlassian.cache.CacheSettingsBuilder;
+import com.ngs.stash.externalhooks.Const;
+import com.ngs.stash.externalhooks.ao.InstalledHookScript;
+
+import net.java.ao.DBParam;
+import net.java.ao.Query;
+
+public class InstalledHookScriptDao {
+  private static final int MAX_ENTRIES = 100000;
+  private static final int DELETE_BATCH_SIZE = 500;
+  private static final long EXPIRE_AFTER_ACCESS_MINUTES = 60;
+
+  // Cache doesn't store nulls, so missing installations are stored as 0
+  // which is never an id of an entity.
+  private static final Integer MISSING = 0;
+
+  private ActiveObjects ao;
+
+  // Scope key to id of the installation. Most of lookups are done on hook
+  // events just to find out that nothing is installed, so they are answered
+  // from the cache which is invalidated cluster-wide on writes; the rest load
+  // the installation by its primary key.
+  private Cache<String, Integer> installationIds;
+
+  public InstalledHookScriptDao(ActiveObjects ao, CacheManager cacheManager) {
+    this.ao = ao;
+
+    CacheSettings cacheSettings = new CacheSettingsBuilder()
+        .remote()
+        .replicateViaInvalidation()
+        .maxEntries(MAX_ENTRIES)
+        .expireAfterAccess(EXPIRE_AFTER_ACCESS_MINUTES, TimeUnit.MINUTES)
+        .build();
+
+    this.installationIds = cacheManager.getCache(
+        Const.PLUGIN_KEY + ":installations", this::loadInstallationId, cacheSettings);
+  }
+
+  public InstalledHookScript find(String scopeKey) {
+    Integer id = installationIds.get(scopeKey);
+    if (MISSING.equals(id)) {
+      return null;
+    }
+
+    InstalledHookScript installed = ao.get(InstalledHookScript.class, id);
+    if (installed != null && scopeKey.equals(installed.getScopeKey())) {
+      return installed;
+    }
+
+    // the installation has been replaced without the cache being told
+    installationIds.remove(scopeKey);
+
+    return query(scopeKey);
+  }
+
+  public InstalledHookScript create(
+      String scopeKey,
+      String hookId,
+      Integer projectId,
+      int repositoryId,
+      long scriptId,
+      String contentHash) {
+    InstalledHookScript installed = ao.create(
+        InstalledHookScript.class,
+        new DBParam("SCOPE_KEY", scopeKey),
+        new DBParam("HOOK_ID", hookId),
+        new DBParam("PROJECT_ID", projectId),
+        new DBParam("REPOSITORY_ID", repositoryId),
+        new DBParam("SCRIPT_ID", scriptId),
+        new DBParam("CONTENT_HASH", contentHash),
+        new DBParam("INSTALLED_AT", new Date()));
+
+    installationIds.put(scopeKey, installed.getID());
+
+    return installed;
+  }
+
+  public void delete(InstalledHookScript installed) {
+    String scopeKey = installed.getScopeKey();
+
+    ao.delete(installed);
+
+    installationIds.put(scopeKey, MISSING);
+  }
+
+  /**
+   * Deletes given installations in batches.
+   *
+   * @param installed
+   */
+  public void delete(InstalledHookScript[] installed) {
+    for (int start = 0; start < installed.length; start += DELETE_BATCH_SIZE) {
+      InstalledHookScript[] batch = Arrays.copyOfRange(
+          installed, start, Math.min(installed.length, start + DELETE_BATCH_SIZE));
+
+      String[] scopeKeys =
+          Arrays.stream(batch).map(InstalledHookScript::getScopeKey).toArray(String[]::new);
+
+      ao.delete(batch);
+
+      for (String scopeKey : scopeKeys) {
+        installationIds.put(scopeKey, MISSING);
+      }
+    }
+  }
+
+  /**
+   * Loads ids of installations of the hook into the cache with a single query, so hook
+   * events right after start don't query installations one scope at a time. Returns amount of
+   * loaded installations.
+   *
+   * @param hookId
+   */
+  public int warmUp(String hookId) {
+    InstalledHookScript[] installed = ao.find(
+        InstalledHookScript.class,
+        Query.select()
+            .from(InstalledHookScript.class)
+            .where("HOOK_ID = ?", hookId)
+            .limit(MAX_ENTRIES));
+
+    // Values are only supplied for missing keys, put() would invalidate keys
+    // cached by other nodes of the cluster.
+    for (InstalledHookScript installation : installed) {
+      int id = installation.getID();
+      installationIds.get(installation.getScopeKey(), () -> id);
+    }
+
+    return installed.length;
+  }
+
+  public int countByScript(long scriptId) {
+    return ao.count(
+        InstalledHookScript.class,
+        Query.select().from(InstalledHookScript.class).where("SCRIPT_ID = ?", scriptId));
+  }
+
+  /**
+   * Returns any installation of the hook with the given contents, its script can be shared.
+   *
+   * @param hookId
+   * @param contentHash
+   */
+  public InstalledHookScript findByContent(String hookId, String contentHash) {
+    InstalledHookScript[] installed = ao.find(
+        InstalledHookScript.class,
+        Query.select()
+            .from(InstalledHookScript.class)
+            .where("HOOK_ID = ? AND CONTENT_HASH = ?", hookId, contentHash)
+            .limit(1));
+    if (installed.length == 0) {
+      return null;
+    }
+
+    return installed[0];
+  }
+
+  public InstalledHookScript[] findByHook(String hookId) {
+    return ao.find(
+        InstalledHookScript.class,
+        Query.select().from(InstalledHookScript.class).where("HOOK_ID = ?", hookId));
+  }
+
+  /**
+   * Returns installations of project settings of the given hook on repositories of the project.
+   *
+   * @param hookId
+   * @param projectId
+   */
+  public InstalledHookScript[] findByProject(String hookId, int projectId) {
+    return ao.find(
+        InstalledHookScript.class,
+        Query.select()
+            .from(InstalledHookScript.class)
+            .where("HOOK_ID = ? AND PROJECT_ID = ?", hookId, projectId));
+  }
+
+  public InstalledHookScript[] findByRepository(int repositoryId) {
+    return ao.find(
+        InstalledHookScript.class,
+        Query.select().from(InstalledHookScript.class).where("REPOSITORY_ID = ?", repositoryId));
+  }
+
+  private InstalledHookScript query(String scopeKey) {
+    InstalledHookScript[] installed = ao.find(
+        InstalledHookScript.class,
+        Query.select().from(InstalledHookScript.class).where("SCOPE_KEY = ?", scopeKey));
+    if (installed.length == 0) {
+      return null;
+    }
+
+    return installed[0];
+  }
+
+  private Integer loadInstallationId(String scopeKey) {
+    InstalledHookScript installed = query(scopeKey);
+    if (installed == null) {
+      return MISSING;
+    }
+
+    return installed.getID();
+  }
+}
@@ -0,0 +1,66 @@
+package com.ngs.stash.externalhooks.dao;
+
+import java.util.Date;
+
+import com.atlassian.activeobjects.external.ActiveObjects;
+import com.ngs.stash.externalhooks.ao.ProjectJob;
+
+import net.java.ao.DBParam;
+import net.java.ao.Query;
+
+public class ProjectJobDao {
+  private ActiveObjects ao;
+
+  public ProjectJobDao(ActiveObjects ao) {
+    this.ao = ao;
+  }
+
+  public ProjectJob create(String hookId, int projectId, boolean enable, String node) {
+    return ao.create(
+        ProjectJob.class,
+        new DBParam("HOOK_ID", hookId),
+        new DBParam("PROJECT_ID", projectId),
+        new DBParam("ENABLE", enable),
+        new DBParam("NODE", node),
+        new DBParam("CREATED_AT", new Date()));
+  }
+
+  public ProjectJob find(Integer id) {
+    ProjectJob[] jobs =
+        ao.find(ProjectJob.class, Query.select().from(ProjectJob.class).where("ID = ?", id));
+    if (jobs.length == 0) {
+      return null;
+    }
+
+    return jobs[0];
+  }
+
+  /**
+   * Returns the most recent job of the hook on the project, null if there is no such job.
+   *
+   * @param hookId
+   * @param projectId
+   */
+  public ProjectJob findLatest(String hookId, int projectId) {
+    ProjectJob[] jobs = ao.find(
+        ProjectJob.class,
+        Query.select()
+            .from(ProjectJob.class)
+            .where("HOOK_ID = ? AND PROJECT_ID = ?", hookId, projectId)
+            .order("ID DESC")
+            .limit(1));
+    if (jobs.length == 0) {
+      return null;
+    }
+
+    return jobs[0];
+  }
+
+  public ProjectJob[] findUnfinished(String node) {
+    return ao.find(
+        ProjectJob.class,
+        Query.select()
+            .from(ProjectJob.class)
+            .where("NODE = ? AND FINISHED = ?", node, false));
+  }
+}
@@ -0,0 +1,175 @@
+package com.ngs.stash.externalhooks.hook;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.atlassian.bitbucket.repository.RefChange;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Collects pushes of the same hook executable to the same repository over a window and submits
+ * them to {@link AsyncHookQueue} as a single execution.
+ *
+ * <p>Ref changes of all collected pushes are merged: every ref is listed once, with the old value
+ * from the first push which has changed it and the new value from the last one. Refs which have
+ * been returned to their original value are left out.
+ *
+ * <p>Every push is held in the spool of {@link AsyncHookQueue} until its batch is submitted, so
+ * pushes collected when the node stops are replayed one by one after restart.
+ */
+public class AsyncHookBatcher {
+  private static Logger log = LoggerFactory.getLogger(AsyncHookBatcher.class);
+
+  private final AsyncHookQueue queue;
+
+  private final Map<String, Batch> batches = new HashMap<>();
+
+  private final ScheduledExecutorService scheduler =
+      Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "external-hooks-async-batcher");
+        thread.setDaemon(true);
+        return thread;
+      });
+
+  public AsyncHookBatcher(AsyncHookQueue queue) {
+    this.queue = queue;
+  }
+
+  /**
+   * Adds the push to the batch of the given key, the batch is submitted after {@code windowMillis}
+   * since its first push or once it has collected {@code maxPushes} pushes, whichever comes first.
+   *
+   * @param key identifies the repository and the executable
+   * @param job execution of the push, its environment is used for the batch if it's the last one
+   * @param changes ref changes of the push
+   * @param windowMillis
+   * @param maxPushes 0 means unlimited
+   */
+  public void add(
+      String key,
+      AsyncHookQueue.Job job,
+      Collection<RefChange> changes,
+      long windowMillis,
+      int maxPushes) {
+    long offset = queue.hold(job);
+
+    Batch full = null;
+
+    synchronized (batches) {
+      Batch batch = batches.get(key);
+      if (batch == null) {
+        Batch created = new Batch();
+        batches.put(key, created);
+
+        created.timer =
+            scheduler.schedule(() -> flush(key, created), windowMillis, TimeUnit.MILLISECONDS);
+        batch = created;
+      }
+
+      batch.add(job, changes, offset);
+
+      if (maxPushes > 0 && batch.pushes >= maxPushes) {
+        full = batches.remove(key);
+        full.timer.cancel(false);
+      }
+    }
+
+    if (full != null) {
+      submit(full);
+    }
+  }
+
+  /** Submits all collected batches right away, so they get into the spool before stop. */
+  public void stop() {
+    scheduler.shutdownNow();
+
+    List<Batch> pending;
+    synchronized (batches) {
+      pending = new ArrayList<>(batches.values());
+      batches.clear();
+    }
+
+    for (Batch batch : pending) {
+      submit(batch);
+    }
+  }
+
+  private void flush(String key, Batch batch) {
+    synchronized (batches) {
+      // the batch has been already submitted because it was full, the key
+      // may belong to the next batch by now
+      if (!batches.remove(key, batch)) {
+        return;
+      }
+    }
+
+    submit(batch);
+  }
+
+  private void submit(Batch batch) {
+    StringBuilder stdin = new StringBuilder();
+    batch.changes.forEach((ref, hashes) -> {
+      if (hashes[0].equals(hashes[1])) {
+        return;
+      }
+
+      stdin.append(hashes[0]).append(' ');
+      stdin.append(hashes[1]).append(' ');
+      stdin.append(ref).append('\n');
+    });
+
+    if (stdin.length() == 0) {
+      log.debug("{}: {} pushes cancel each other out", batch.job.getDescription(), batch.pushes);
+      queue.release(batch.held);
+      return;
+    }
+
+    log.debug("{}: submitting batch of {} pushes", batch.job.getDescription(), batch.pushes);
+
+    AsyncHookQueue.Job job = new AsyncHookQueue.Job(
+        batch.job.getDescription() + " (" + batch.pushes + " pushes)",
+        batch.job.getCommand(),
+        batch.job.getEnvironment(),
+        stdin.toString());
+
+    queue.submit(job, batch.held);
+  }
+
+  private static class Batch {
+    private AsyncHookQueue.Job job;
+    private int pushes;
+    private ScheduledFuture<?> timer;
+
+    // spool offsets of collected pushes
+    private final List<Long> held = new ArrayList<>();
+
+    // ref id -> old and new value
+    private final Map<String, String[]> changes = new LinkedHashMap<>();
+
+    private void add(AsyncHookQueue.Job job, Collection<RefChange> refChanges, long offset) {
+      this.job = job;
+      this.pushes++;
+      this.held.add(offset);
+
+      for (RefChange change : refChanges) {
+        String[] hashes = changes.get(change.getRef().getId());
+        if (hashes == null) {
+          changes.put(
+              change.getRef().getId(), new String[] {change.getFromHash(), change.getToHash()});
+        } else {
+          hashes[1] = change.getToHash();
+        }
+      }
+    }
+  }
+}
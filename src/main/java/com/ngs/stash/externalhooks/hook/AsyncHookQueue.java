@@ -0,0 +1,411 @@
+package com.ngs.stash.externalhooks.hook;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.ProcessBuilder.Redirect;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.ngs.stash.externalhooks.dao.ExternalHooksSettingsDao;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded queue of asynchronous post-receive hook executions drained by a fixed pool of workers.
+ *
+ * <p>Asynchronous hooks used to be started by the hook script in a detached background subshell
+ * with stdin dumped into a temporary file, so push storms left hundreds of untracked processes and
+ * temporary files on the node. Now executions are queued in memory: at most {@link
+ * ExternalHooksSettingsDao#getAsyncWorkers()} executables run at the same time and at most {@link
+ * ExternalHooksSettingsDao#getAsyncQueueSize()} wait for a worker, what happens to the rest is
+ * decided by {@link OverflowPolicy}. Executables running longer than {@link
+ * ExternalHooksSettingsDao#getAsyncTimeout()} are killed.
+ *
+ * <p>Executions are written to {@link AsyncHookSpool} before they are queued and acknowledged
+ * when they are completed or dropped, so executions interrupted by a restart are replayed by
+ * {@link #replay()}, at least once.
+ */
+public class AsyncHookQueue {
+  private static Logger log = LoggerFactory.getLogger(AsyncHookQueue.class);
+
+  // how long a push waits for a free slot in the queue with BLOCK policy
+  private static final long BLOCK_TIMEOUT_MILLIS = 5000L;
+
+  private static final File DEV_NULL = new File("/dev/null");
+
+  private ExternalHooksSettingsDao settingsDao;
+  private AsyncHookSpool spool;
+
+  private ThreadPoolExecutor executor;
+
+  private final AtomicLong submitted = new AtomicLong();
+  private final AtomicLong completed = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+
+  public AsyncHookQueue(ExternalHooksSettingsDao settingsDao, AsyncHookSpool spool) {
+    this.settingsDao = settingsDao;
+    this.spool = spool;
+  }
+
+  /**
+   * Queues the execution, blocks the caller for a while or drops some execution if the queue is
+   * full, depending on {@link ExternalHooksSettingsDao#getAsyncOverflow()}.
+   *
+   * @param job
+   */
+  public void submit(Job job) {
+    long offset = -1;
+    try {
+      offset = spool.append(job);
+    } catch (IOException e) {
+      // the execution is still queued, it just doesn't survive restart
+      log.error("unable to write {} to async hook spool", job.getDescription(), e);
+    }
+
+    enqueue(new Task(offset, job));
+  }
+
+  /**
+   * Queues the execution which replaces held executions, they are completed once the execution is
+   * written to the spool.
+   *
+   * @param job
+   * @param held offsets returned by {@link #hold(Job)}
+   */
+  public void submit(Job job, List<Long> held) {
+    submit(job);
+    release(held);
+  }
+
+  /**
+   * Writes the execution to the spool without queueing it, so the execution held by {@link
+   * AsyncHookBatcher} is replayed on its own if the node stops before the batch is submitted.
+   *
+   * @param job
+   * @return offset of the execution in the spool, -1 if it can't be written
+   */
+  public long hold(Job job) {
+    try {
+      return spool.append(job);
+    } catch (IOException e) {
+      log.error("unable to write {} to async hook spool", job.getDescription(), e);
+      return -1;
+    }
+  }
+
+  /**
+   * Completes held executions which are not going to be executed.
+   *
+   * @param held offsets returned by {@link #hold(Job)}
+   */
+  public void release(List<Long> held) {
+    for (long offset : held) {
+      if (offset >= 0) {
+        spool.complete(offset);
+      }
+    }
+  }
+
+  /**
+   * Queues executions which have been interrupted by the previous stop of the node. They have been
+   * accepted already, so they are never dropped: the caller waits for free slots in the queue
+   * instead.
+   */
+  public void replay() {
+    Map<Long, Job> jobs;
+    try {
+      jobs = spool.recover();
+    } catch (IOException e) {
+      log.error("unable to read async hook spool", e);
+      return;
+    }
+
+    if (jobs.isEmpty()) {
+      return;
+    }
+
+    log.info("replaying {} interrupted async hook executions", jobs.size());
+
+    BlockingQueue<Runnable> queue = getExecutor().getQueue();
+
+    for (Map.Entry<Long, Job> entry : jobs.entrySet()) {
+      submitted.incrementAndGet();
+
+      try {
+        queue.put(new Task(entry.getKey(), entry.getValue()));
+      } catch (InterruptedException e) {
+        // the node is stopping, the rest is replayed after next start
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+  }
+
+  public synchronized void stop() {
+    if (executor != null) {
+      executor.shutdownNow();
+      executor = null;
+    }
+
+    spool.close();
+  }
+
+  private void enqueue(Task task) {
+    ThreadPoolExecutor executor = getExecutor();
+    BlockingQueue<Runnable> queue = executor.getQueue();
+
+    submitted.incrementAndGet();
+
+    switch (settingsDao.getAsyncOverflow()) {
+      case DROP_OLDEST:
+        while (!queue.offer(task)) {
+          Runnable oldest = queue.poll();
+          if (oldest != null) {
+            drop((Task) oldest);
+          }
+        }
+        break;
+
+      case DROP_NEWEST:
+        if (!queue.offer(task)) {
+          drop(task);
+        }
+        break;
+
+      case BLOCK:
+      default:
+        try {
+          if (!queue.offer(task, BLOCK_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+            drop(task);
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          drop(task);
+        }
+        break;
+    }
+  }
+
+  /** Amount of executions waiting for a worker. */
+  public int getDepth() {
+    ThreadPoolExecutor executor = this.executor;
+    return executor == null ? 0 : executor.getQueue().size();
+  }
+
+  public int getCapacity() {
+    ThreadPoolExecutor executor = this.executor;
+    if (executor == null) {
+      return settingsDao.getAsyncQueueSize();
+    }
+
+    return executor.getQueue().size() + executor.getQueue().remainingCapacity();
+  }
+
+  /** Amount of executables running right now. */
+  public int getActive() {
+    ThreadPoolExecutor executor = this.executor;
+    return executor == null ? 0 : executor.getActiveCount();
+  }
+
+  public int getWorkers() {
+    return settingsDao.getAsyncWorkers();
+  }
+
+  public long getSubmitted() {
+    return submitted.get();
+  }
+
+  public long getCompleted() {
+    return completed.get();
+  }
+
+  public long getFailed() {
+    return failed.get();
+  }
+
+  public long getDropped() {
+    return dropped.get();
+  }
+
+  // Queue capacity is fixed once the queue is created, amount of workers
+  // follows the settings.
+  private synchronized ThreadPoolExecutor getExecutor() {
+    int workers = settingsDao.getAsyncWorkers();
+
+    if (executor == null) {
+      AtomicInteger threads = new AtomicInteger();
+
+      executor = new ThreadPoolExecutor(
+          workers,
+          workers,
+          0L,
+          TimeUnit.MILLISECONDS,
+          new ArrayBlockingQueue<>(settingsDao.getAsyncQueueSize()),
+          runnable -> {
+            Thread thread =
+                new Thread(runnable, "external-hooks-async-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          });
+    } else if (executor.getMaximumPoolSize() < workers) {
+      executor.setMaximumPoolSize(workers);
+      executor.setCorePoolSize(workers);
+    } else if (executor.getMaximumPoolSize() > workers) {
+      executor.setCorePoolSize(workers);
+      executor.setMaximumPoolSize(workers);
+    }
+
+    // tasks are put into the queue directly, so workers have to be running
+    // to take them
+    executor.prestartAllCoreThreads();
+
+    return executor;
+  }
+
+  private void drop(Task task) {
+    dropped.incrementAndGet();
+
+    log.warn("async hook queue is full, dropping {}", task.job.getDescription());
+
+    acknowledge(task);
+  }
+
+  private void acknowledge(Task task) {
+    if (task.offset >= 0) {
+      spool.complete(task.offset);
+    }
+  }
+
+  private void run(Task task) {
+    Job job = task.job;
+
+    ProcessBuilder builder = new ProcessBuilder(job.getCommand());
+    builder.environment().putAll(job.getEnvironment());
+    builder.redirectErrorStream(true);
+    builder.redirectOutput(Redirect.appendTo(DEV_NULL));
+
+    try {
+      Process process = builder.start();
+
+      try (OutputStream stdin = process.getOutputStream()) {
+        stdin.write(job.getStdin().getBytes(StandardCharsets.UTF_8));
+      } catch (IOException e) {
+        // the executable doesn't have to read its stdin
+        log.debug("unable to write stdin of {}", job.getDescription(), e);
+      }
+
+      // a hung executable would hold its worker forever, so it's killed
+      // and acknowledged like any other failed execution
+      int timeout = settingsDao.getAsyncTimeout();
+      if (!process.waitFor(timeout, TimeUnit.SECONDS)) {
+        process.destroyForcibly();
+        failed.incrementAndGet();
+
+        log.warn("{} has not finished in {} seconds, killed", job.getDescription(), timeout);
+      } else {
+        int exitCode = process.exitValue();
+        if (exitCode != 0) {
+          log.debug("{} exited with code {}", job.getDescription(), exitCode);
+        }
+
+        completed.incrementAndGet();
+      }
+    } catch (IOException e) {
+      failed.incrementAndGet();
+
+      log.error("unable to run {}", job.getDescription(), e);
+    } catch (InterruptedException e) {
+      // the node is stopping, the execution is replayed after restart
+      Thread.currentThread().interrupt();
+      return;
+    }
+
+    acknowledge(task);
+  }
+
+  private class Task implements Runnable {
+    private final long offset;
+    private final Job job;
+
+    private Task(long offset, Job job) {
+      this.offset = offset;
+      this.job = job;
+    }
+
+    @Override
+    public void run() {
+      AsyncHookQueue.this.run(this);
+    }
+  }
+
+  public enum OverflowPolicy {
+    /** The push waits for a free slot for a while, the execution is dropped after that. */
+    BLOCK("block"),
+    /** The oldest queued execution is dropped in favor of the new one. */
+    DROP_OLDEST("drop_oldest"),
+    /** The new execution is dropped. */
+    DROP_NEWEST("drop_newest");
+
+    private final String id;
+
+    OverflowPolicy(String id) {
+      this.id = id;
+    }
+
+    public String getId() {
+      return id;
+    }
+
+    public static OverflowPolicy fromId(String id) {
+      for (OverflowPolicy policy : values()) {
+        if (policy.id.equals(id)) {
+          return policy;
+        }
+      }
+
+      return null;
+    }
+  }
+
+  /** Single execution of a hook executable. */
+  public static class Job {
+    private final String description;
+    private final List<String> command;
+    private final Map<String, String> environment;
+    private final String stdin;
+
+    public Job(
+        String description, List<String> command, Map<String, String> environment, String stdin) {
+      this.description = description;
+      this.command = command;
+      this.environment = environment;
+      this.stdin = stdin;
+    }
+
+    public String getDescription() {
+      return description;
+    }
+
+    public List<String> getCommand() {
+      return command;
+    }
+
+    public Map<String, String> getEnvironment() {
+      return environment;
+    }
+
+    public String getStdin() {
+      return stdin;
+    }
+  }
+}
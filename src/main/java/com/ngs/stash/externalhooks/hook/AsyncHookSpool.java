@@ -0,0 +1,412 @@
+package com.ngs.stash.externalhooks.hook;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only file of queued asynchronous hook executions, so executions which are queued or
+ * running when the node stops are replayed after restart.
+ *
+ * <p>Every execution is appended and synced to disk before it's queued and is identified by its
+ * offset. Offsets only grow: the header of the file holds the offset of its first record, so
+ * offsets stay valid when completed records are cut off. Completed offsets are checkpointed: the
+ * checkpoint file holds the offset of the first execution which is not completed yet, everything
+ * before it is never replayed. Once completed records take more space than the rest (and at least
+ * a megabyte), or all executions are completed, the rest is copied to a new file which replaces
+ * the spool, so it stays about as large as the backlog even if it never drains.
+ *
+ * <p>Executions which have not been completed before the node has been stopped are read when the
+ * spool is opened, before anything is appended, so they are not cut off by executions completed
+ * in the meantime.
+ *
+ * <p>Executions are replayed at least once, not exactly once: executions completed after the
+ * checkpoint (while an earlier one is still running) and executions which were running when the
+ * node stopped are executed again after restart, so hook executables should tolerate duplicates.
+ */
+public class AsyncHookSpool {
+  private static Logger log = LoggerFactory.getLogger(AsyncHookSpool.class);
+
+  private static final int VERSION = 1;
+
+  // offset of the first record in the file
+  private static final int HEADER_BYTES = Long.BYTES;
+
+  private static final long COMPACT_BYTES = 1024 * 1024;
+
+  private final Supplier<File> file;
+  private final long compactBytes;
+
+  private FileChannel spool;
+  private FileChannel checkpoint;
+
+  // offset of the first record of the spool file
+  private long base;
+
+  // offsets of executions which are not completed yet
+  private final TreeMap<Long, Boolean> pending = new TreeMap<>();
+
+  // executions read on open which have not been returned by recover() yet
+  private final Map<Long, AsyncHookQueue.Job> recovered = new LinkedHashMap<>();
+  private boolean opened;
+
+  /**
+   * @param file spool file, the checkpoint is stored next to it; it's resolved on first use
+   */
+  public AsyncHookSpool(Supplier<File> file) {
+    this(file, COMPACT_BYTES);
+  }
+
+  AsyncHookSpool(Supplier<File> file, long compactBytes) {
+    this.file = file;
+    this.compactBytes = compactBytes;
+  }
+
+  /**
+   * Appends the execution and returns its offset.
+   *
+   * @param job
+   */
+  public synchronized long append(AsyncHookQueue.Job job) throws IOException {
+    open();
+
+    byte[] record = encode(job);
+
+    long position = spool.size();
+
+    ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES + record.length);
+    buffer.putInt(record.length);
+    buffer.put(record);
+    buffer.flip();
+
+    while (buffer.hasRemaining()) {
+      spool.write(buffer, position + buffer.position());
+    }
+
+    spool.force(false);
+
+    long offset = toOffset(position);
+    pending.put(offset, true);
+
+    return offset;
+  }
+
+  /**
+   * Marks the execution as completed, it will not be replayed anymore.
+   *
+   * @param offset
+   */
+  public synchronized void complete(long offset) {
+    if (pending.remove(offset) == null) {
+      return;
+    }
+
+    try {
+      // the spool is closed if it has failed to reopen after compaction
+      open();
+
+      long end = toOffset(spool.size());
+      long first = pending.isEmpty() ? end : pending.firstKey();
+
+      // the checkpoint goes first, so it's never behind the first record of
+      // the compacted spool
+      writeCheckpoint(first);
+
+      long completed = first - base;
+      long rest = end - first;
+      if (completed > 0 && (rest == 0 || (completed >= compactBytes && completed >= rest))) {
+        compact(first);
+      }
+    } catch (IOException e) {
+      // the execution might be replayed once again after restart
+      log.error("unable to checkpoint async hook spool", e);
+    }
+  }
+
+  /**
+   * Returns executions which have not been completed before the node has been stopped, they are
+   * pending until they are completed. Executions are returned only once.
+   */
+  public synchronized Map<Long, AsyncHookQueue.Job> recover() throws IOException {
+    open();
+
+    Map<Long, AsyncHookQueue.Job> jobs = new LinkedHashMap<>(recovered);
+    recovered.clear();
+
+    return jobs;
+  }
+
+  /** Amount of executions which are not completed yet. */
+  public synchronized int getPending() {
+    return pending.size();
+  }
+
+  public synchronized void close() {
+    try {
+      if (spool != null) {
+        spool.close();
+      }
+
+      if (checkpoint != null) {
+        checkpoint.close();
+      }
+    } catch (IOException e) {
+      log.error("unable to close async hook spool", e);
+    } finally {
+      spool = null;
+      checkpoint = null;
+    }
+  }
+
+  private void open() throws IOException {
+    if (spool != null) {
+      return;
+    }
+
+    File spoolFile = file.get();
+    spoolFile.getParentFile().mkdirs();
+
+    if (checkpoint == null) {
+      checkpoint = FileChannel.open(
+          new File(spoolFile.getPath() + ".checkpoint").toPath(),
+          StandardOpenOption.CREATE,
+          StandardOpenOption.READ,
+          StandardOpenOption.WRITE);
+    }
+
+    spool = FileChannel.open(
+        spoolFile.toPath(),
+        StandardOpenOption.CREATE,
+        StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
+
+    if (spool.size() < HEADER_BYTES) {
+      // new spool continues after the last checkpoint
+      spool.truncate(0);
+      writeHeader(spool, readCheckpoint());
+      spool.force(false);
+    }
+
+    ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+    read(header, 0);
+    base = header.getLong(0);
+
+    if (!opened) {
+      readRecords();
+      opened = true;
+    }
+  }
+
+  private void readRecords() throws IOException {
+    long size = spool.size();
+    long position = toPosition(Math.max(base, Math.min(readCheckpoint(), toOffset(size))));
+
+    while (position + Integer.BYTES <= size) {
+      ByteBuffer header = ByteBuffer.allocate(Integer.BYTES);
+      read(header, position);
+
+      int length = header.getInt(0);
+      if (length < 0 || position + Integer.BYTES + length > size) {
+        break;
+      }
+
+      ByteBuffer record = ByteBuffer.allocate(length);
+      read(record, position + Integer.BYTES);
+
+      long offset = toOffset(position);
+      recovered.put(offset, decode(record.array()));
+      pending.put(offset, true);
+
+      position += Integer.BYTES + length;
+    }
+
+    if (position < size) {
+      // the node has been stopped in the middle of appending
+      log.warn("truncating incomplete record of async hook spool at {}", toOffset(position));
+      spool.truncate(position);
+      spool.force(false);
+    }
+  }
+
+  // Copies records starting from the given offset to a new file which
+  // atomically replaces the spool, a stop in the middle leaves either of them.
+  private void compact(long first) throws IOException {
+    File spoolFile = file.get();
+    File temp = new File(spoolFile.getPath() + ".compact");
+
+    try (FileChannel target = FileChannel.open(
+        temp.toPath(),
+        StandardOpenOption.CREATE,
+        StandardOpenOption.TRUNCATE_EXISTING,
+        StandardOpenOption.WRITE)) {
+      writeHeader(target, first);
+
+      long position = toPosition(first);
+      long size = spool.size();
+      while (position < size) {
+        position += spool.transferTo(position, size - position, target);
+      }
+
+      target.force(true);
+    }
+
+    Files.move(
+        temp.toPath(),
+        spoolFile.toPath(),
+        StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+
+    spool.close();
+    spool = null;
+
+    open();
+  }
+
+  private long toOffset(long position) {
+    return base + position - HEADER_BYTES;
+  }
+
+  private long toPosition(long offset) {
+    return offset - base + HEADER_BYTES;
+  }
+
+  private void read(ByteBuffer buffer, long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      if (spool.read(buffer, position + buffer.position()) < 0) {
+        throw new IOException("unexpected end of async hook spool");
+      }
+    }
+  }
+
+  private static void writeHeader(FileChannel channel, long base) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES);
+    buffer.putLong(base);
+    buffer.flip();
+
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+
+  private long readCheckpoint() throws IOException {
+    if (checkpoint.size() < Long.BYTES) {
+      return 0;
+    }
+
+    ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES);
+    while (buffer.hasRemaining()) {
+      if (checkpoint.read(buffer, buffer.position()) < 0) {
+        return 0;
+      }
+    }
+
+    return buffer.getLong(0);
+  }
+
+  private void writeCheckpoint(long offset) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES);
+    buffer.putLong(offset);
+    buffer.flip();
+
+    while (buffer.hasRemaining()) {
+      checkpoint.write(buffer, buffer.position());
+    }
+
+    checkpoint.force(false);
+  }
+
+  private static byte[] encode(AsyncHookQueue.Job job) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream output = new DataOutputStream(bytes);
+
+    output.writeInt(VERSION);
+    writeString(output, job.getDescription());
+
+    output.writeInt(job.getCommand().size());
+    for (String arg : job.getCommand()) {
+      writeString(output, arg);
+    }
+
+    output.writeInt(job.getEnvironment().size());
+    for (Map.Entry<String, String> entry : job.getEnvironment().entrySet()) {
+      writeString(output, entry.getKey());
+      writeString(output, entry.getValue());
+    }
+
+    writeString(output, job.getStdin());
+
+    output.flush();
+
+    return bytes.toByteArray();
+  }
+
+  private static AsyncHookQueue.Job decode(byte[] record) throws IOException {
+    DataInputStream input = new DataInputStream(new ByteArrayInputStream(record));
+
+    int version = input.readInt();
+    if (version != VERSION) {
+      throw new IOException("unsupported async hook spool record version: " + version);
+    }
+
+    String description = readString(input);
+
+    int args = input.readInt();
+    List<String> command = new ArrayList<>(args);
+    for (int i = 0; i < args; i++) {
+      command.add(readString(input));
+    }
+
+    int variables = input.readInt();
+    Map<String, String> environment = new HashMap<>();
+    for (int i = 0; i < variables; i++) {
+      environment.put(readString(input), readString(input));
+    }
+
+    String stdin = readString(input);
+
+    return new AsyncHookQueue.Job(description, command, environment, stdin);
+  }
+
+  // DataOutput.writeUTF is limited to 64k, stdin of a large push is longer
+  private static void writeString(DataOutputStream output, String value) throws IOException {
+    if (value == null) {
+      output.writeInt(-1);
+      return;
+    }
+
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    output.writeInt(bytes.length);
+    output.write(bytes);
+  }
+
+  private static String readString(DataInputStream input) throws IOException {
+    int length = input.readInt();
+    if (length < 0) {
+      return null;
+    }
+
+    byte[] bytes = new byte[length];
+    input.readFully(bytes);
+
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
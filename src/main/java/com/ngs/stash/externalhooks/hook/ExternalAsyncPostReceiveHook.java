@@ -29,5 +29,7 @@ public class ExternalAsyncPostReceiveHook
 
   @Override
   public void postUpdate(
-      @Nonnull PostRepositoryHookContext context, @Nonnull RepositoryHookRequest request) {}
+      @Nonnull PostRepositoryHookContext context, @Nonnull RepositoryHookRequest request) {
+    hooksCoordinator.postUpdate(Const.POST_RECEIVE_HOOK_ID, context, request);
+  }
 }
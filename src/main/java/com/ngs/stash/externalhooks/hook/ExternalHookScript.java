@@ -5,21 +5,32 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 import javax.annotation.Nonnull;
 
+import com.atlassian.activeobjects.external.ActiveObjects;
 import com.atlassian.bitbucket.cluster.ClusterService;
+import com.atlassian.bitbucket.concurrent.LockService;
 import com.atlassian.bitbucket.hook.repository.RepositoryHookTrigger;
 import com.atlassian.bitbucket.hook.script.HookScript;
 import com.atlassian.bitbucket.hook.script.HookScriptCreateRequest;
+import com.atlassian.bitbucket.hook.script.HookScriptRemoveConfigurationRequest;
 import com.atlassian.bitbucket.hook.script.HookScriptService;
 import com.atlassian.bitbucket.hook.script.HookScriptSetConfigurationRequest;
 import com.atlassian.bitbucket.hook.script.HookScriptType;
 import com.atlassian.bitbucket.permission.Permission;
 import com.atlassian.bitbucket.permission.PermissionService;
+import com.atlassian.bitbucket.repository.Repository;
+import com.atlassian.bitbucket.repository.RepositoryService;
 import com.atlassian.bitbucket.scope.ProjectScope;
 import com.atlassian.bitbucket.scope.RepositoryScope;
 import com.atlassian.bitbucket.scope.Scope;
@@ -28,47 +39,68 @@ import com.atlassian.bitbucket.server.StorageService;
 import com.atlassian.bitbucket.setting.Settings;
 import com.atlassian.bitbucket.setting.SettingsValidationErrors;
 import com.atlassian.bitbucket.user.SecurityService;
+import com.atlassian.cache.CacheManager;
 import com.atlassian.plugin.util.ClassLoaderUtils;
 import com.atlassian.sal.api.pluginsettings.PluginSettings;
 import com.atlassian.sal.api.pluginsettings.PluginSettingsFactory;
-import com.atlassian.upm.api.license.PluginLicenseManager;
 import com.google.common.base.Charsets;
 import com.google.common.escape.Escaper;
 import com.google.common.escape.Escapers;
 import com.ngs.stash.externalhooks.Const;
 import com.ngs.stash.externalhooks.LicenseValidator;
+import com.ngs.stash.externalhooks.ao.InstalledHookScript;
+import com.ngs.stash.externalhooks.dao.InstalledHookScriptDao;
+import com.ngs.stash.externalhooks.util.CachedPluginSettings;
 import com.ngs.stash.externalhooks.util.ScopeUtil;
 
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.FilenameUtils;
-import org.apache.commons.lang3.tuple.Pair;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public class ExternalHookScript {
   private static Logger log = LoggerFactory.getLogger(ExternalHookScript.class);
 
+  // seconds between SIGTERM and SIGKILL when the executable exceeds its timeout
+  private static final int TIMEOUT_KILL_AFTER = 5;
+
+  // exit codes of timeout(1) when the command was terminated and when it was killed
+  private static final int TIMEOUT_TERMINATED = 124;
+  private static final int TIMEOUT_KILLED = 128 + 9;
+
   private final Escaper SHELL_ESCAPE;
   private PermissionService permissionService;
   private ClusterService clusterService;
   private StorageService storageService;
   private HookScriptService hookScriptService;
+  private RepositoryService repositoryService;
   private PluginSettings pluginSettings;
+  private InstalledHookScriptDao installedDao;
   private String hookId;
   private HookScriptType hookScriptType;
   private HookTriggersGetter getRepositoryHookTriggers;
   private SecurityService securityService;
+  private LockService lockService;
   private String hookScriptTemplate;
   private LicenseValidator license;
   private String hookKey;
+  private HookEventLog timeoutLog;
+  private HookEventLog saturationLog;
+  private HookConcurrency concurrency;
+  private String concurrencyTemplate;
 
   public ExternalHookScript(
       PermissionService permissionService,
-      PluginLicenseManager pluginLicenseManager,
+      LicenseValidator licenseValidator,
       ClusterService clusterService,
       StorageService storageService,
       HookScriptService hookScriptService,
+      RepositoryService repositoryService,
       PluginSettingsFactory pluginSettingsFactory,
+      ActiveObjects ao,
+      CacheManager cacheManager,
       SecurityService securityService,
+      LockService lockService,
       String hookId,
       HookScriptType hookScriptType,
       HookTriggersGetter getRepositoryHookTriggers)
@@ -77,11 +109,21 @@ public class ExternalHookScript {
     this.storageService = storageService;
     this.clusterService = clusterService;
     this.hookScriptService = hookScriptService;
-    this.pluginSettings = pluginSettingsFactory.createGlobalSettings();
+    this.repositoryService = repositoryService;
+    this.installedDao = new InstalledHookScriptDao(ao, cacheManager);
+
+    // Plugin settings contain installations made by previous versions of the
+    // plugin, they are looked up whenever installation is not found in the
+    // database table, so they are cached to avoid database round trips.
+    this.pluginSettings = new CachedPluginSettings(
+        pluginSettingsFactory.createGlobalSettings(),
+        cacheManager,
+        Const.PLUGIN_KEY + ":hook-scripts");
     this.hookId = hookId;
     this.hookKey = Const.PLUGIN_KEY + ":" + hookId;
     this.hookScriptType = hookScriptType;
     this.securityService = securityService;
+    this.lockService = lockService;
     this.getRepositoryHookTriggers = getRepositoryHookTriggers;
 
     final Escapers.Builder builder = Escapers.builder();
@@ -90,7 +132,14 @@ public class ExternalHookScript {
 
     this.hookScriptTemplate = this.getResource("hook-script.template.bash");
 
-    this.license = new LicenseValidator(pluginLicenseManager, storageService, clusterService);
+    this.license = licenseValidator;
+
+    this.concurrencyTemplate = this.getResource("hook-script.concurrency.bash");
+
+    this.timeoutLog = new HookEventLog(storageService, clusterService, HookEventLog.TIMEOUTS);
+    this.saturationLog =
+        new HookEventLog(storageService, clusterService, HookEventLog.SATURATION);
+    this.concurrency = new HookConcurrency(storageService, clusterService);
   }
 
   public String getHookKey() {
@@ -173,13 +222,70 @@ public class ExternalHookScript {
       errors.addFieldError("exe", "Specified path is not executable file. Check executable flag.");
       return;
     }
+
+    if (getNonNegativeInt(settings, "timeout") == null) {
+      errors.addFieldError("timeout", "Timeout should be a number of seconds");
+      return;
+    }
+
+    if (hookScriptType == HookScriptType.POST) {
+      if (getNonNegativeInt(settings, "batch_window") == null) {
+        errors.addFieldError("batch_window", "Batching window should be a number of seconds");
+        return;
+      }
+
+      if (getNonNegativeInt(settings, "batch_size") == null) {
+        errors.addFieldError("batch_size", "Maximum amount of pushes should be a number");
+        return;
+      }
+    }
+  }
+
+  /**
+   * Returns the window in milliseconds over which pushes are collected into a single execution, 0
+   * means every push is executed separately.
+   */
+  public long getBatchWindowMillis(@Nonnull Settings settings) {
+    if (hookScriptType != HookScriptType.POST) {
+      return 0;
+    }
+
+    Integer seconds = getNonNegativeInt(settings, "batch_window");
+    return seconds == null ? 0 : seconds * 1000L;
+  }
+
+  /** Returns the amount of seconds the executable is allowed to run, 0 is unlimited. */
+  public int getTimeoutSeconds(@Nonnull Settings settings) {
+    Integer seconds = getNonNegativeInt(settings, "timeout");
+    return seconds == null ? 0 : seconds;
+  }
+
+  /** Returns the maximum amount of pushes collected into a single execution, 0 is unlimited. */
+  public int getBatchSize(@Nonnull Settings settings) {
+    Integer size = getNonNegativeInt(settings, "batch_size");
+    return size == null ? 0 : size;
+  }
+
+  // Returns 0 for blank values and null for invalid ones.
+  private Integer getNonNegativeInt(Settings settings, String key) {
+    String value = settings.getString(key, "").trim();
+    if (value.isEmpty()) {
+      return 0;
+    }
+
+    try {
+      int result = Integer.parseInt(value);
+      return result < 0 ? null : result;
+    } catch (NumberFormatException e) {
+      return null;
+    }
   }
 
   // Should be used only for uninstalling legacy ProjectScope scripts.
   public void uninstallLegacy(ProjectScope scope) {
-    String pluginSettingsPath = getLegacyPluginSettingsPath(scope);
+    String scopeKey = getLegacyPluginSettingsPath(scope);
 
-    DeletionResult result = deleteHookScript(pluginSettingsPath);
+    DeletionResult result = deleteHookScript(scopeKey, scope.getProject().getId(), 0, scope);
     if (result != DeletionResult.MISSING_ID) {
       // Unlike other methods we don't want to spam this message because this
       // function will be called on every next plugin version, unfortunately.
@@ -188,15 +294,14 @@ public class ExternalHookScript {
           hookId,
           ScopeUtil.toString(scope),
           result.getMessage());
-
-      pluginSettings.remove(pluginSettingsPath);
     }
   }
 
   public void uninstall(ProjectScope parent, RepositoryScope scope) {
-    String pluginSettingsPath = getPluginSettingsPath(parent, scope);
+    String scopeKey = getPluginSettingsPath(parent, scope);
 
-    DeletionResult result = deleteHookScript(pluginSettingsPath);
+    DeletionResult result =
+        deleteHookScript(scopeKey, parent.getProject().getId(), getRepositoryId(scope), scope);
 
     log.debug(
         "deleting project hook script {} of {} on {}: {}",
@@ -204,65 +309,250 @@ public class ExternalHookScript {
         ScopeUtil.toString(parent),
         ScopeUtil.toString(scope),
         result.getMessage());
+  }
 
-    if (result != DeletionResult.MISSING_ID) {
-      pluginSettings.remove(pluginSettingsPath);
+  /**
+   * Uninstalls project hook scripts from all repositories of the project. Works only with
+   * installations stored in the database table, see {@link #isLegacyMigrated()}.
+   */
+  public void uninstall(ProjectScope parent) {
+    InstalledHookScript[] installed =
+        installedDao.findByProject(hookId, parent.getProject().getId());
+
+    installedDao.delete(installed);
+
+    Map<Long, List<InstalledHookScript>> scripts = Arrays.stream(installed)
+        .collect(Collectors.groupingBy(InstalledHookScript::getScriptId));
+
+    scripts.forEach((id, installations) -> withRegistryLock(
+        installations.get(0).getContentHash(), id, () -> {
+          Optional<HookScript> hookScript = hookScriptService.findById(id);
+          if (!hookScript.isPresent()) {
+            return null;
+          }
+
+          // Deleting the script removes all of its configurations at once,
+          // otherwise they are removed one by one from repositories which
+          // don't need the script anymore.
+          int references = installedDao.countByScript(id) + getLegacyReferences(id);
+          if (references == 0) {
+            delete(hookScript.get());
+            forgetLegacyScript(id);
+            return null;
+          }
+
+          for (InstalledHookScript installation : installations) {
+            Repository repository = repositoryService.getById(installation.getRepositoryId());
+            if (repository == null) {
+              continue;
+            }
+
+            RepositoryScope scope = new RepositoryScope(repository);
+            if (!isConfiguredBySibling(installation.getScopeKey(), id, scope)) {
+              removeConfiguration(hookScript.get(), scope);
+            }
+          }
+
+          return null;
+        }));
+
+    log.debug(
+        "deleted {} project hook script(s) {} of {}",
+        installed.length,
+        hookId,
+        ScopeUtil.toString(parent));
+  }
+
+  /** Loads installations of the hook into the cache, see {@link InstalledHookScriptDao#warmUp}. */
+  public int warmUp() {
+    return installedDao.warmUp(hookId);
+  }
+
+  /**
+   * Forgets installations on the deleted repository. Bitbucket removes configurations of hook
+   * scripts together with the repository, but not the scripts themselves.
+   *
+   * @param repositoryId
+   */
+  public int forget(int repositoryId) {
+    InstalledHookScript[] installed = Arrays.stream(installedDao.findByRepository(repositoryId))
+        .filter(installation -> hookId.equals(installation.getHookId()))
+        .toArray(InstalledHookScript[]::new);
+
+    forget(installed);
+
+    return installed.length;
+  }
+
+  /**
+   * Forgets installations on repositories which don't exist anymore, for example deleted while the
+   * plugin was disabled. Returns amount of forgotten installations.
+   */
+  public int sweepOrphans() {
+    InstalledHookScript[] orphans = Arrays.stream(installedDao.findByHook(hookId))
+        .filter(installation -> repositoryService.getById(installation.getRepositoryId()) == null)
+        .toArray(InstalledHookScript[]::new);
+
+    forget(orphans);
+
+    if (orphans.length > 0) {
+      log.info("forgot {} orphaned installations of hook script {}", orphans.length, hookId);
+    }
+
+    return orphans.length;
+  }
+
+  // Deletes installations and shared scripts which are not referenced
+  // anymore, configurations are expected to be gone already.
+  private void forget(InstalledHookScript[] installed) {
+    installedDao.delete(installed);
+
+    Map<Long, String> scripts = new HashMap<>();
+    for (InstalledHookScript installation : installed) {
+      scripts.putIfAbsent(installation.getScriptId(), installation.getContentHash());
     }
+
+    scripts.forEach((id, hash) -> withRegistryLock(hash, id, () -> {
+      if (installedDao.countByScript(id) + getLegacyReferences(id) == 0) {
+        hookScriptService.findById(id).ifPresent(this::delete);
+        forgetLegacyScript(id);
+      }
+
+      return null;
+    }));
+  }
+
+  /**
+   * Returns true if installations made by previous versions of the plugin have been moved from
+   * plugin settings to the database table, so the table contains every installation.
+   */
+  public boolean isLegacyMigrated() {
+    return pluginSettings.get(getLegacyMigratedPath()) != null;
+  }
+
+  /**
+   * Moves installations made by previous versions of the plugin on the repository to the database
+   * table.
+   */
+  public void migrateLegacy(RepositoryScope scope) {
+    ProjectScope parent = new ProjectScope(scope.getProject());
+
+    int repositoryId = getRepositoryId(scope);
+
+    findInstalled(getPluginSettingsPath(parent, scope), parent.getProject().getId(), repositoryId);
+    findInstalled(getPluginSettingsPath(scope), null, repositoryId);
+  }
+
+  public void setLegacyMigrated() {
+    pluginSettings.put(getLegacyMigratedPath(), String.valueOf(true));
   }
 
   public void uninstall(RepositoryScope scope) {
-    String pluginSettingsPath = getPluginSettingsPath(scope);
+    String scopeKey = getPluginSettingsPath(scope);
 
-    DeletionResult result = deleteHookScript(pluginSettingsPath);
+    DeletionResult result = deleteHookScript(scopeKey, null, getRepositoryId(scope), scope);
 
     log.debug(
         "deleting repository hook script {} on {}: {}",
         hookId,
         ScopeUtil.toString(scope),
         result.getMessage());
-
-    if (result != DeletionResult.MISSING_ID) {
-      pluginSettings.remove(pluginSettingsPath);
-    }
   }
 
   public void install(
       @Nonnull Settings settings, @Nonnull ProjectScope parent, @Nonnull RepositoryScope scope) {
-    String pluginSettingsPath = getPluginSettingsPath(parent, scope);
-    Pair<HookScript, List<RepositoryHookTrigger>> result =
-        install(pluginSettingsPath, settings, scope);
+    String scopeKey = getPluginSettingsPath(parent, scope);
+    Installation result = install(scopeKey, parent.getProject().getId(), settings, scope);
+    if (result == null) {
+      log.debug(
+          "project hook {} of {} is executed by async queue on {}",
+          hookId,
+          ScopeUtil.toString(parent),
+          ScopeUtil.toString(scope));
+      return;
+    }
 
     log.debug(
-        "created project hook script {} of {} with id: {} on {}; triggers: {}",
+        "{} project hook script {} of {} with id: {} on {}; triggers: {}",
+        result.isChanged() ? "configured" : "kept up-to-date",
         hookId,
         ScopeUtil.toString(parent),
-        result.getLeft().getId(),
+        result.getHookScript().getId(),
         ScopeUtil.toString(scope),
-        listTriggers(result.getRight()));
+        listTriggers(result.getTriggers()));
   }
 
   public void install(@Nonnull Settings settings, @Nonnull RepositoryScope scope) {
-    String pluginSettingsPath = getPluginSettingsPath(scope);
-    Pair<HookScript, List<RepositoryHookTrigger>> result =
-        install(pluginSettingsPath, settings, scope);
+    String scopeKey = getPluginSettingsPath(scope);
+    Installation result = install(scopeKey, null, settings, scope);
+    if (result == null) {
+      log.debug(
+          "repository hook {} is executed by async queue on {}", hookId, ScopeUtil.toString(scope));
+      return;
+    }
 
     log.debug(
-        "created repository hook script {} with id: {} on {}; triggers: {}",
+        "{} repository hook script {} with id: {} on {}; triggers: {}",
+        result.isChanged() ? "configured" : "kept up-to-date",
         hookId,
-        result.getLeft().getId(),
+        result.getHookScript().getId(),
         ScopeUtil.toString(scope),
-        listTriggers(result.getRight()));
+        listTriggers(result.getTriggers()));
   }
 
-  private Pair<HookScript, List<RepositoryHookTrigger>> install(
-      String pluginSettingsPath, @Nonnull Settings settings, @Nonnull RepositoryScope scope) {
-    deleteHookScript(pluginSettingsPath);
+  private Installation install(
+      String scopeKey,
+      Integer projectId,
+      @Nonnull Settings settings,
+      @Nonnull RepositoryScope scope) {
+    // Asynchronous hooks are executed by the plugin itself, there should be
+    // no HookScript which would execute them once again.
+    if (isQueued(settings)) {
+      deleteHookScript(scopeKey, projectId, getRepositoryId(scope), scope);
+      return null;
+    }
 
-    HookScript hookScript = create(settings);
+    String script = getScriptContents(settings);
+    List<RepositoryHookTrigger> triggers = getRepositoryHookTriggers.get();
 
-    pluginSettings.put(pluginSettingsPath, String.valueOf(hookScript.getId()));
+    // Fingerprint describes desired state of the hook script on the given
+    // scope, if it matches the installed one there is nothing to do, so
+    // no-op restarts and re-applies don't churn HookScripts.
+    String fingerprint = getFingerprint(scopeKey, script, triggers);
 
-    List<RepositoryHookTrigger> triggers = getRepositoryHookTriggers.get();
+    InstalledHookScript installed = findInstalled(scopeKey, projectId, getRepositoryId(scope));
+    if (installed != null && fingerprint.equals(installed.getFingerprint())) {
+      Optional<HookScript> hookScript = hookScriptService.findById(installed.getScriptId());
+      if (hookScript.isPresent()) {
+        return new Installation(hookScript.get(), triggers, false);
+      }
+    }
+
+    String hash = DigestUtils.sha256Hex(script);
+
+    // HookScripts are shared between all scopes which need the same contents,
+    // so the current one is kept if only triggers have changed.
+    HookScript hookScript = null;
+    if (installed != null && hash.equals(installed.getContentHash())) {
+      hookScript = hookScriptService.findById(installed.getScriptId()).orElse(null);
+    }
+
+    if (hookScript == null) {
+      deleteHookScript(scopeKey, projectId, getRepositoryId(scope), scope);
+
+      // The installation references the script before it's configured, so
+      // concurrent release of the same script by another scope keeps it.
+      Lock lock = getRegistryLock(hash, 0);
+      lock.lock();
+      try {
+        hookScript = acquire(hash, script);
+
+        installed = installedDao.create(
+            scopeKey, hookId, projectId, getRepositoryId(scope), hookScript.getId(), hash);
+      } finally {
+        lock.unlock();
+      }
+    }
 
     HookScriptSetConfigurationRequest.Builder configBuilder =
         new HookScriptSetConfigurationRequest.Builder(hookScript, scope);
@@ -271,32 +561,245 @@ public class ExternalHookScript {
     HookScriptSetConfigurationRequest configRequest = configBuilder.build();
     hookScriptService.setConfiguration(configRequest);
 
-    return Pair.of(hookScript, triggers);
-  }
-
-  private DeletionResult deleteHookScript(String pluginSettingsPath) {
-    Object id = pluginSettings.get(pluginSettingsPath);
-    if (id != null) {
-      Optional<HookScript> maybeHookScript =
-          hookScriptService.findById(Long.valueOf(id.toString()));
-      if (maybeHookScript.isPresent()) {
-        return securityService
-            .withPermission(Permission.SYS_ADMIN, "atlassian-external-hooks: delete hook script")
-            .call(() -> {
-              hookScriptService.delete(maybeHookScript.get());
-              return DeletionResult.OK;
-            });
+    // Fingerprint is stored only after successful configuration, so partially
+    // installed scripts will be re-installed on next attempt.
+    installed.setTriggers(
+        triggers.stream().map(trigger -> trigger.getId()).collect(Collectors.joining(",")));
+    installed.setFingerprint(fingerprint);
+    installed.setInstalledAt(new Date());
+    installed.save();
+
+    return new Installation(hookScript, triggers, true);
+  }
+
+  /**
+   * Returns installation on the given scope. Installations made by previous versions of the
+   * plugin are stored in plugin settings, they are moved to the database table on first access.
+   */
+  private InstalledHookScript findInstalled(String scopeKey, Integer projectId, int repositoryId) {
+    InstalledHookScript installed = installedDao.find(scopeKey);
+    if (installed != null) {
+      return installed;
+    }
+
+    if (isLegacyMigrated()) {
+      return null;
+    }
+
+    Object legacyId = pluginSettings.get(scopeKey);
+    if (legacyId == null) {
+      return null;
+    }
+
+    long id = Long.parseLong(legacyId.toString());
+
+    return withRegistryLock(getLegacyScriptHash(id), id, () -> {
+      InstalledHookScript migrated = installedDao.find(scopeKey);
+      if (migrated != null) {
+        return migrated;
+      }
+
+      // The reference is represented by the new row from now on.
+      int references = getLegacyReferences(id);
+      if (references > 1) {
+        pluginSettings.put(getScriptPath(id, "references"), String.valueOf(references - 1));
       } else {
+        pluginSettings.remove(getScriptPath(id, "references"));
+      }
+
+      migrated = installedDao.create(
+          scopeKey, hookId, projectId, repositoryId, id, getLegacyScriptHash(id));
+
+      Object fingerprint = pluginSettings.get(scopeKey + ":fingerprint");
+      if (fingerprint != null) {
+        migrated.setFingerprint(fingerprint.toString());
+        migrated.save();
+      }
+
+      pluginSettings.remove(scopeKey);
+      pluginSettings.remove(scopeKey + ":fingerprint");
+
+      return migrated;
+    });
+  }
+
+  private String getFingerprint(
+      String scopeKey, String script, List<RepositoryHookTrigger> triggers) {
+    StringBuilder builder = new StringBuilder();
+    builder.append(scopeKey).append("\n");
+    builder.append(triggers.stream()
+            .map(trigger -> trigger.getId())
+            .sorted()
+            .collect(Collectors.joining(",")))
+        .append("\n");
+    builder.append(script);
+
+    return DigestUtils.sha256Hex(builder.toString());
+  }
+
+  private DeletionResult deleteHookScript(
+      String scopeKey, Integer projectId, int repositoryId, Scope scope) {
+    InstalledHookScript installed = findInstalled(scopeKey, projectId, repositoryId);
+    if (installed == null) {
+      return DeletionResult.MISSING_ID;
+    }
+
+    long id = installed.getScriptId();
+
+    return withRegistryLock(installed.getContentHash(), id, () -> {
+      boolean keepConfiguration = isConfiguredBySibling(scopeKey, id, scope);
+
+      installedDao.delete(installed);
+
+      Optional<HookScript> maybeHookScript = hookScriptService.findById(id);
+      if (!maybeHookScript.isPresent()) {
         return DeletionResult.MISSING_SCRIPT;
       }
+
+      release(maybeHookScript.get(), scope, keepConfiguration);
+
+      return DeletionResult.OK;
+    });
+  }
+
+  /**
+   * Returns the cluster-wide lock of the shared {@link HookScript}, installations referencing it
+   * are created and counted on every node of the cluster.
+   *
+   * @param hash contents hash of the script, scripts created by previous versions of the plugin
+   *     might have no hash and are locked by id
+   * @param id id of the script
+   */
+  private Lock getRegistryLock(String hash, long id) {
+    // the name is kept short since lock names are stored by the cluster
+    return lockService.getLock(
+        "external-hooks:" + hookId + ":" + (hash != null ? "content:" + hash : "id:" + id));
+  }
+
+  private <T> T withRegistryLock(String hash, long id, Supplier<T> action) {
+    Lock lock = getRegistryLock(hash, id);
+    lock.lock();
+    try {
+      return action.get();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns shared {@link HookScript} with given contents creating it if necessary. Should be
+   * called while holding the registry lock of the contents.
+   */
+  private HookScript acquire(String hash, String script) {
+    InstalledHookScript shared = installedDao.findByContent(hookId, hash);
+    if (shared != null) {
+      Optional<HookScript> hookScript = hookScriptService.findById(shared.getScriptId());
+      if (hookScript.isPresent()) {
+        return hookScript.get();
+      }
     }
 
-    return DeletionResult.MISSING_ID;
+    return create(script);
   }
 
-  private HookScript create(Settings settings) {
-    String script = getScriptContents(settings);
+  /**
+   * Removes configuration of the shared {@link HookScript} on the given scope, the script itself is
+   * deleted when no installation references it anymore. Installation of the scope should be
+   * deleted already and the registry lock of the script should be held.
+   */
+  private void release(HookScript hookScript, Scope scope, boolean keepConfiguration) {
+    // Scripts installed by previous versions of the plugin might be still
+    // referenced by installations which are not moved to the database table.
+    int references =
+        installedDao.countByScript(hookScript.getId()) + getLegacyReferences(hookScript.getId());
+    if (references > 0) {
+      if (!keepConfiguration) {
+        removeConfiguration(hookScript, scope);
+      }
+
+      return;
+    }
+
+    delete(hookScript);
+
+    forgetLegacyScript(hookScript.getId());
+  }
+
+  // Project and repository hook scripts of the same hook on the same
+  // repository may share the HookScript and therefore its configuration.
+  private boolean isConfiguredBySibling(String scopeKey, long id, Scope scope) {
+    if (!ScopeUtil.isRepository(scope)) {
+      return false;
+    }
+
+    RepositoryScope repositoryScope = (RepositoryScope) scope;
 
+    String projectKey =
+        getPluginSettingsPath(new ProjectScope(repositoryScope.getProject()), repositoryScope);
+    String repositoryKey = getPluginSettingsPath(repositoryScope);
+
+    InstalledHookScript sibling;
+    if (scopeKey.equals(projectKey)) {
+      sibling = findInstalled(repositoryKey, null, getRepositoryId(repositoryScope));
+    } else {
+      sibling = findInstalled(
+          projectKey, repositoryScope.getProject().getId(), getRepositoryId(repositoryScope));
+    }
+
+    return sibling != null && sibling.getScriptId() == id;
+  }
+
+  private String getLegacyScriptHash(long id) {
+    Object hash = pluginSettings.get(getScriptPath(id, "hash"));
+    if (hash == null) {
+      return null;
+    }
+
+    return hash.toString();
+  }
+
+  private int getLegacyReferences(long id) {
+    Object references = pluginSettings.get(getScriptPath(id, "references"));
+    if (references == null) {
+      return 0;
+    }
+
+    return Integer.parseInt(references.toString());
+  }
+
+  private void forgetLegacyScript(long id) {
+    String hash = getLegacyScriptHash(id);
+    if (hash != null) {
+      Object contentId = pluginSettings.get(getContentPath(hash));
+      if (contentId != null && contentId.toString().equals(String.valueOf(id))) {
+        pluginSettings.remove(getContentPath(hash));
+      }
+    }
+
+    pluginSettings.remove(getScriptPath(id, "hash"));
+    pluginSettings.remove(getScriptPath(id, "references"));
+  }
+
+  private void delete(HookScript hookScript) {
+    securityService
+        .withPermission(Permission.SYS_ADMIN, "atlassian-external-hooks: delete hook script")
+        .call(() -> {
+          hookScriptService.delete(hookScript);
+          return null;
+        });
+  }
+
+  private void removeConfiguration(HookScript hookScript, Scope scope) {
+    HookScriptRemoveConfigurationRequest request =
+        new HookScriptRemoveConfigurationRequest.Builder(hookScript, scope).build();
+
+    securityService
+        .withPermission(
+            Permission.SYS_ADMIN, "atlassian-external-hooks: remove hook script configuration")
+        .call(() -> hookScriptService.removeConfiguration(request));
+  }
+
+  private HookScript create(String script) {
     HookScriptCreateRequest.Builder builder = new HookScriptCreateRequest.Builder(
             this.hookId, Const.PLUGIN_KEY, this.hookScriptType)
         .content(script);
@@ -308,26 +811,61 @@ public class ExternalHookScript {
         .call(() -> hookScriptService.create(hookScriptCreateRequest));
   }
 
+  /**
+   * Returns true if the trigger is one of triggers configured for the hook in the add-on settings,
+   * hook scripts are installed only with these triggers.
+   *
+   * @param trigger
+   */
+  public boolean isTriggeredBy(@Nonnull RepositoryHookTrigger trigger) {
+    return getRepositoryHookTriggers.get().stream()
+        .anyMatch(configured -> configured.getId().equals(trigger.getId()));
+  }
+
+  /**
+   * Returns true if the hook is executed asynchronously by {@link AsyncHookQueue} of the plugin
+   * instead of a {@link HookScript}.
+   */
+  public boolean isQueued(@Nonnull Settings settings) {
+    return hookScriptType == HookScriptType.POST
+        && (settings.getBoolean("async", false) || getBatchWindowMillis(settings) > 0);
+  }
+
+  /**
+   * Returns command which executes the hook the same way as its {@link HookScript} does, it
+   * expects the same environment variables.
+   */
+  public List<String> getCommand(@Nonnull Settings settings) {
+    return Arrays.asList("/bin/bash", "-c", getScriptContents(settings));
+  }
+
   private String getScriptContents(Settings settings) {
     File executable =
         this.getExecutable(settings.getString("exe", ""), settings.getBoolean("safe_path", false));
 
-    Boolean async = settings.getBoolean("async", false);
-
     StringBuilder scriptBuilder = new StringBuilder();
     scriptBuilder.append(this.hookScriptTemplate).append("\n\n");
 
-    if (async) {
-      // dumping stdin to a temporary file
-      scriptBuilder.append("stdin=\"$(mktemp)\"\n");
-      scriptBuilder.append("cat >\"$stdin\"\n");
-      // subshell start
-      scriptBuilder.append("(\n");
-      // deleting stdin after finishing the job
-      scriptBuilder.append("    trap \"rm \\\"$stdin\\\"\" EXIT\n");
-      // just an indentation for script and params
-      scriptBuilder.append("    ");
+    appendConcurrency(scriptBuilder);
+
+    // timeout(1) runs the executable in its own process group and signals the
+    // whole group, so processes spawned by the executable are killed as well.
+    int timeout = getTimeoutSeconds(settings);
+    if (timeout > 0) {
+      scriptBuilder.append("hook_started=$SECONDS\n");
     }
+
+    scriptBuilder.append("external_hooks_run ");
+
+    if (timeout > 0) {
+      scriptBuilder
+          .append("timeout --kill-after=")
+          .append(TIMEOUT_KILL_AFTER)
+          .append(" ")
+          .append(timeout)
+          .append(" ");
+    }
+
     scriptBuilder.append("'").append(SHELL_ESCAPE.escape(executable.toString())).append("'");
 
     String params = settings.getString("params");
@@ -342,18 +880,63 @@ public class ExternalHookScript {
       }
     }
 
-    if (async) {
-      scriptBuilder.append(" <\"$stdin\"\n");
+    scriptBuilder.append("\n");
 
-      // subshell end: closing all fds and starting subshell in background
-      scriptBuilder.append(") >/dev/null 2>&1 <&- &\n");
+    if (timeout > 0) {
+      appendTimeoutHandler(scriptBuilder, timeout);
     }
 
-    scriptBuilder.append("\n");
-
     return scriptBuilder.toString();
   }
 
+  // Limits are read by the script on every execution, see HookConcurrency.
+  private void appendConcurrency(StringBuilder scriptBuilder) {
+    appendVariable(scriptBuilder, "EXTERNAL_HOOKS_ID", hookId);
+    appendVariable(
+        scriptBuilder, "EXTERNAL_HOOKS_LIMITS", concurrency.getLimitsFile().getAbsolutePath());
+    appendVariable(
+        scriptBuilder, "EXTERNAL_HOOKS_SLOTS", concurrency.getSlotsDir().getAbsolutePath());
+    appendVariable(
+        scriptBuilder,
+        "EXTERNAL_HOOKS_SATURATION_LOG",
+        saturationLog.getFile().getAbsolutePath());
+
+    scriptBuilder.append(this.concurrencyTemplate).append("\n\n");
+  }
+
+  private void appendVariable(StringBuilder scriptBuilder, String name, String value) {
+    scriptBuilder.append(name).append("='").append(SHELL_ESCAPE.escape(value)).append("'\n");
+  }
+
+  private void appendTimeoutHandler(StringBuilder scriptBuilder, int timeout) {
+    String message = "External hook has not finished in " + timeout + " seconds and was "
+        + "terminated, the operation is rejected. Contact your Bitbucket administrator.";
+
+    // the executable may exit with the same codes on its own, so it's only a
+    // timeout if it has been running for the whole limit
+    scriptBuilder.append("exit_code=$?\n");
+    scriptBuilder
+        .append("if [[ ( $exit_code -eq ")
+        .append(TIMEOUT_TERMINATED)
+        .append(" || $exit_code -eq ")
+        .append(TIMEOUT_KILLED)
+        .append(" ) && $((SECONDS - hook_started)) -ge ")
+        .append(timeout)
+        .append(" ]]; then\n");
+    scriptBuilder.append("    echo '").append(SHELL_ESCAPE.escape(message)).append("' >&2\n");
+    scriptBuilder
+        .append("    printf '%s %s %s %s/%s %s\\n' \"$(date +%s)\" \"$(hostname)\" '")
+        .append(SHELL_ESCAPE.escape(hookKey))
+        .append("' \"$BB_PROJECT_KEY\" \"$BB_REPO_SLUG\" ")
+        .append(timeout)
+        .append(" >> '")
+        .append(SHELL_ESCAPE.escape(timeoutLog.getFile().getAbsolutePath()))
+        .append("' 2>/dev/null\n");
+    scriptBuilder.append("    exit 1\n");
+    scriptBuilder.append("fi\n");
+    scriptBuilder.append("exit $exit_code\n");
+  }
+
   private String listTriggers(List<RepositoryHookTrigger> list) {
     return "["
         + list.stream().map(trigger -> trigger.getId()).collect(Collectors.joining(", "))
@@ -402,6 +985,22 @@ public class ExternalHookScript {
     return builder.toString();
   }
 
+  private String getLegacyMigratedPath() {
+    return this.hookKey + ":legacy-migrated";
+  }
+
+  private String getContentPath(String hash) {
+    return this.hookKey + ":content:" + hash;
+  }
+
+  private String getScriptPath(long id, String component) {
+    return this.hookKey + ":script:" + id + ":" + component;
+  }
+
+  private int getRepositoryId(RepositoryScope scope) {
+    return scope.getRepository().getId();
+  }
+
   private String getLegacyPluginSettingsPath(ProjectScope scope) {
     StringBuilder builder = new StringBuilder(this.hookKey);
     builder.append(":").append(scope.getType().getId());
@@ -415,6 +1014,31 @@ public class ExternalHookScript {
     List<RepositoryHookTrigger> get();
   }
 
+  private static class Installation {
+    private HookScript hookScript;
+    private List<RepositoryHookTrigger> triggers;
+    private boolean changed;
+
+    public Installation(
+        HookScript hookScript, List<RepositoryHookTrigger> triggers, boolean changed) {
+      this.hookScript = hookScript;
+      this.triggers = triggers;
+      this.changed = changed;
+    }
+
+    public HookScript getHookScript() {
+      return hookScript;
+    }
+
+    public List<RepositoryHookTrigger> getTriggers() {
+      return triggers;
+    }
+
+    public boolean isChanged() {
+      return changed;
+    }
+  }
+
   private enum DeletionResult {
     MISSING_ID,
     MISSING_SCRIPT,
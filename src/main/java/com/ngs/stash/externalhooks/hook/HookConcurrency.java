@@ -0,0 +1,226 @@
+package com.ngs.stash.externalhooks.hook;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import com.atlassian.bitbucket.cluster.ClusterService;
+import com.atlassian.bitbucket.server.StorageService;
+import com.ngs.stash.externalhooks.dao.ExternalHooksSettingsDao;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Limits of external hook executions running at the same time.
+ *
+ * <p>Executables are run by hook scripts, so the limits are enforced by the scripts themselves:
+ * every execution takes a slot of its repository, of its hook and a global one, waiting for free
+ * slots up to the configured amount of seconds. Slots are files locked with flock(1) in a directory
+ * of the host under the (shared) home directory, a slot file contains pid of the hook script
+ * holding it. Directories of slots are accessible by the owner only and are not used if they are
+ * symbolic links.
+ *
+ * <p>Limits are written to a file in the (shared) home directory which is read on every execution,
+ * so changes are applied without re-creating hook scripts.
+ */
+public class HookConcurrency {
+  private static Logger log = LoggerFactory.getLogger(HookConcurrency.class);
+
+  private static final Set<PosixFilePermission> OWNER_ONLY =
+      PosixFilePermissions.fromString("rwx------");
+
+  private ClusterService clusterService;
+  private StorageService storageService;
+
+  public HookConcurrency(StorageService storageService, ClusterService clusterService) {
+    this.storageService = storageService;
+    this.clusterService = clusterService;
+  }
+
+  public File getLimitsFile() {
+    return new File(getHomeDir(), "external-hooks-concurrency.conf");
+  }
+
+  /**
+   * Returns the directory of slots of all nodes. Hook scripts are shared by all nodes of the
+   * cluster, so every script takes slots in the subdirectory named after its host.
+   */
+  public File getSlotsDir() {
+    return new File(getHomeDir(), "external-hooks-slots");
+  }
+
+  /**
+   * Writes limits from the settings for hook scripts.
+   *
+   * @param settingsDao
+   */
+  public void apply(ExternalHooksSettingsDao settingsDao) throws IOException {
+    prepare(getSlotsDir());
+    prepare(getHostSlotsDir());
+
+    StringBuilder limits = new StringBuilder();
+    limits.append("EXTERNAL_HOOKS_LIMIT_GLOBAL=").append(settingsDao.getConcurrencyGlobal());
+    limits.append("\nEXTERNAL_HOOKS_LIMIT_HOOK=").append(settingsDao.getConcurrencyHook());
+    limits
+        .append("\nEXTERNAL_HOOKS_LIMIT_REPOSITORY=")
+        .append(settingsDao.getConcurrencyRepository());
+    limits.append("\nEXTERNAL_HOOKS_LIMIT_WAIT=").append(settingsDao.getConcurrencyWait());
+    limits.append("\n");
+
+    // hook scripts read the file at any moment, so it's replaced atomically
+    File file = getLimitsFile();
+    File temp = new File(file.getPath() + ".tmp");
+    Files.write(temp.toPath(), limits.toString().getBytes(StandardCharsets.UTF_8));
+    Files.move(
+        temp.toPath(),
+        file.toPath(),
+        StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+
+    log.info("concurrency limits of external hooks are updated: {}", file);
+  }
+
+  /** Returns the amount of slots held on the host which serves the request. */
+  public Usage getUsage() {
+    Usage usage = new Usage();
+
+    File dir;
+    try {
+      dir = getHostSlotsDir();
+    } catch (IOException e) {
+      log.warn("unable to resolve concurrency slots of the host", e);
+      return usage;
+    }
+
+    if (Files.isSymbolicLink(dir.toPath())) {
+      log.warn("concurrency slots directory is a symbolic link, ignoring: {}", dir);
+      return usage;
+    }
+
+    usage.global = countBusy(new File(dir, "global"));
+
+    File[] hooks = new File(dir, "hook").listFiles(File::isDirectory);
+    if (hooks != null) {
+      for (File hook : hooks) {
+        int busy = countBusy(hook);
+        if (busy > 0) {
+          usage.hooks.put(hook.getName(), busy);
+        }
+      }
+    }
+
+    File[] projects = new File(dir, "repository").listFiles(File::isDirectory);
+    if (projects != null) {
+      for (File project : projects) {
+        File[] repositories = project.listFiles(File::isDirectory);
+        if (repositories == null) {
+          continue;
+        }
+
+        for (File repository : repositories) {
+          int busy = countBusy(repository);
+          if (busy > 0) {
+            usage.repositories.put(project.getName() + "/" + repository.getName(), busy);
+          }
+        }
+      }
+    }
+
+    return usage;
+  }
+
+  // Slot files are not removed after use, the slot is busy while the hook script
+  // which wrote its pid is running.
+  private int countBusy(File dir) {
+    File[] slots = dir.listFiles(File::isFile);
+    if (slots == null) {
+      return 0;
+    }
+
+    int busy = 0;
+    for (File slot : slots) {
+      String pid;
+      try {
+        pid = new String(Files.readAllBytes(slot.toPath()), StandardCharsets.UTF_8).trim();
+      } catch (IOException e) {
+        log.debug("unable to read concurrency slot: {}", slot, e);
+        continue;
+      }
+
+      if (!pid.isEmpty() && pid.chars().allMatch(Character::isDigit)) {
+        if (new File("/proc/" + pid).isDirectory()) {
+          busy++;
+        }
+      }
+    }
+
+    return busy;
+  }
+
+  // Same name as $HOSTNAME of hook scripts.
+  private File getHostSlotsDir() throws IOException {
+    byte[] host = Files.readAllBytes(Paths.get("/proc/sys/kernel/hostname"));
+
+    return new File(getSlotsDir(), new String(host, StandardCharsets.UTF_8).trim());
+  }
+
+  // Slot files are opened for writing by hook scripts, so the directory must
+  // not be writable by others nor point somewhere else.
+  private static void prepare(File dir) throws IOException {
+    Path path = dir.toPath();
+    if (Files.isSymbolicLink(path)) {
+      throw new IOException("concurrency slots directory is a symbolic link: " + dir);
+    }
+
+    try {
+      Files.createDirectory(path, PosixFilePermissions.asFileAttribute(OWNER_ONLY));
+    } catch (FileAlreadyExistsException e) {
+      // created by a hook script or on previous start
+      if (!Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+        throw new IOException("concurrency slots directory is not a directory: " + dir, e);
+      }
+    }
+
+    Files.setPosixFilePermissions(path, OWNER_ONLY);
+  }
+
+  private File getHomeDir() {
+    if (this.clusterService.isAvailable()) {
+      return this.storageService.getSharedHomeDir().toFile();
+    } else {
+      return this.storageService.getHomeDir().toFile();
+    }
+  }
+
+  public static class Usage {
+    private int global;
+    private final Map<String, Integer> hooks = new TreeMap<>();
+    private final Map<String, Integer> repositories = new TreeMap<>();
+
+    public int getGlobal() {
+      return global;
+    }
+
+    /** Returns the amount of busy slots by hook id, hooks without busy slots are omitted. */
+    public Map<String, Integer> getHooks() {
+      return hooks;
+    }
+
+    /** Returns the amount of busy slots by "project/repository". */
+    public Map<String, Integer> getRepositories() {
+      return repositories;
+    }
+  }
+}
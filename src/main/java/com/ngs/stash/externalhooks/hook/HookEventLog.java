@@ -0,0 +1,190 @@
+package com.ngs.stash.externalhooks.hook;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import com.atlassian.bitbucket.cluster.ClusterService;
+import com.atlassian.bitbucket.server.StorageService;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Log of notable hook executions.
+ *
+ * <p>Hook scripts are run by Bitbucket, not by the plugin, so the generated script appends a line
+ * to the log itself, starting with "timestamp host hook project/repository". Logs are kept in the
+ * shared home, so they cover all nodes of the cluster.
+ *
+ * <p>The log is rotated when it's read and has grown over a megabyte: entries of the rotated file
+ * are added to the count kept next to the log and the previous rotated file is dropped, so reading
+ * the log never takes more than the last two files.
+ */
+public class HookEventLog {
+  private static Logger log = LoggerFactory.getLogger(HookEventLog.class);
+
+  /** Executions terminated because they exceeded their timeout. */
+  public static final String TIMEOUTS = "external-hooks-timeouts.log";
+
+  /** Executions which waited for concurrency limits or were rejected by them. */
+  public static final String SATURATION = "external-hooks-saturation.log";
+
+  private static final long MAX_BYTES = 1024 * 1024;
+
+  private ClusterService clusterService;
+  private StorageService storageService;
+  private String name;
+
+  public HookEventLog(StorageService storageService, ClusterService clusterService, String name) {
+    this.storageService = storageService;
+    this.clusterService = clusterService;
+    this.name = name;
+  }
+
+  public File getFile() {
+    return new File(getHomeDir(), name);
+  }
+
+  /**
+   * Returns the total amount of entries and the latest entries of the log.
+   *
+   * @param limit maximum amount of entries to return
+   */
+  public synchronized Summary getSummary(int limit) {
+    File file = getFile();
+    File rotated = new File(file.getPath() + ".1");
+    File count = new File(file.getPath() + ".count");
+
+    if (file.length() > MAX_BYTES) {
+      rotate(file, rotated, count);
+    }
+
+    Deque<String> latest = new ArrayDeque<>();
+    long total = readCount(count) + read(file, latest, limit);
+
+    // entries of the rotated file are counted already, it's only read for
+    // the latest entries when the current file has too few of them
+    if (latest.size() < limit) {
+      Deque<String> older = new ArrayDeque<>();
+      read(rotated, older, limit - latest.size());
+      latest.addAll(older);
+    }
+
+    return new Summary(total, new ArrayList<>(latest));
+  }
+
+  // Scripts open the log for every entry, so they start a new file right
+  // after the move. Nodes rotating at the same time may miscount a few
+  // entries, which is fine for diagnostics.
+  private void rotate(File file, File rotated, File count) {
+    try {
+      Files.move(
+          file.toPath(),
+          rotated.toPath(),
+          StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (NoSuchFileException e) {
+      // rotated by another node
+      return;
+    } catch (IOException e) {
+      log.error("unable to rotate hook log: {}", file, e);
+      return;
+    }
+
+    long total = readCount(count) + read(rotated, new ArrayDeque<>(), 0);
+
+    File temp = new File(count.getPath() + ".tmp");
+    try {
+      Files.write(temp.toPath(), String.valueOf(total).getBytes(StandardCharsets.UTF_8));
+      Files.move(
+          temp.toPath(),
+          count.toPath(),
+          StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      log.error("unable to write count of hook log: {}", count, e);
+    }
+  }
+
+  private long readCount(File count) {
+    if (!count.exists()) {
+      return 0;
+    }
+
+    try {
+      return Long.parseLong(
+          new String(Files.readAllBytes(count.toPath()), StandardCharsets.UTF_8).trim());
+    } catch (IOException | NumberFormatException e) {
+      log.error("unable to read count of hook log: {}", count, e);
+      return 0;
+    }
+  }
+
+  // Returns amount of entries in the file, the latest ones are put into
+  // latest, newest first.
+  private int read(File file, Deque<String> latest, int limit) {
+    if (!file.exists()) {
+      return 0;
+    }
+
+    int total = 0;
+    try (BufferedReader reader = new BufferedReader(
+        new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.isEmpty()) {
+          continue;
+        }
+
+        total++;
+
+        latest.addFirst(line);
+        if (latest.size() > limit) {
+          latest.removeLast();
+        }
+      }
+    } catch (IOException e) {
+      log.error("unable to read hook log: {}", file, e);
+    }
+
+    return total;
+  }
+
+  private File getHomeDir() {
+    if (this.clusterService.isAvailable()) {
+      return this.storageService.getSharedHomeDir().toFile();
+    } else {
+      return this.storageService.getHomeDir().toFile();
+    }
+  }
+
+  public static class Summary {
+    private final long total;
+    private final List<String> latest;
+
+    public Summary(long total, List<String> latest) {
+      this.total = total;
+      this.latest = latest;
+    }
+
+    public long getTotal() {
+      return total;
+    }
+
+    /** Returns the latest entries, newest first. */
+    public List<String> getLatest() {
+      return latest;
+    }
+  }
+}
@@ -0,0 +1,44 @@
+package com.ngs.stash.externalhooks.rest;
+
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+
+import com.ngs.stash.externalhooks.hook.AsyncHookQueue;
+
+@XmlRootElement
+public class AsyncQueueResponse {
+  @XmlElement
+  private int depth;
+
+  @XmlElement
+  private int capacity;
+
+  @XmlElement
+  private int active;
+
+  @XmlElement
+  private int workers;
+
+  @XmlElement
+  private long submitted;
+
+  @XmlElement
+  private long completed;
+
+  @XmlElement
+  private long failed;
+
+  @XmlElement
+  private long dropped;
+
+  public AsyncQueueResponse(AsyncHookQueue queue) {
+    depth = queue.getDepth();
+    capacity = queue.getCapacity();
+    active = queue.getActive();
+    workers = queue.getWorkers();
+    submitted = queue.getSubmitted();
+    completed = queue.getCompleted();
+    failed = queue.getFailed();
+    dropped = queue.getDropped();
+  }
+}
@@ -3,6 +3,7 @@ package com.ngs.stash.externalhooks.rest;
 import javax.xml.bind.annotation.XmlElement;
 import javax.xml.bind.annotation.XmlRootElement;
 
+import com.ngs.stash.externalhooks.FactorySummary;
 import com.ngs.stash.externalhooks.ao.FactoryState;
 
 @XmlRootElement
@@ -30,6 +31,14 @@ public class FactoryStateResponse {
     total = state.getTotal();
   }
 
+  public FactoryStateResponse(FactorySummary summary) {
+    id = summary.getId();
+    started = summary.isStarted();
+    finished = summary.isFinished();
+    current = summary.getCurrent();
+    total = summary.getTotal();
+  }
+
   public FactoryStateResponse(int id) {
     this.id = id;
   }
@@ -0,0 +1,36 @@
+package com.ngs.stash.externalhooks.rest;
+
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+
+import com.ngs.stash.externalhooks.ao.ProjectJob;
+
+@XmlRootElement
+public class ProjectJobResponse {
+  @XmlElement
+  private int id;
+
+  @XmlElement
+  private boolean enable;
+
+  @XmlElement
+  private boolean started;
+
+  @XmlElement
+  private boolean finished;
+
+  @XmlElement
+  private int current;
+
+  @XmlElement
+  private int total;
+
+  public ProjectJobResponse(ProjectJob job) {
+    id = job.getID();
+    enable = job.getEnable();
+    started = job.getStarted();
+    finished = job.getFinished();
+    current = job.getCurrent();
+    total = job.getTotal();
+  }
+}
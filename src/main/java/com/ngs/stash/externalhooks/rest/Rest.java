@@ -1,10 +1,6 @@
 package com.ngs.stash.externalhooks.rest;
 
 import java.io.IOException;
-import java.io.Serializable;
-import java.util.Date;
-import java.util.HashMap;
-import java.util.Map;
 
 import javax.ws.rs.Consumes;
 import javax.ws.rs.GET;
@@ -17,54 +13,48 @@ import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 
 import com.atlassian.activeobjects.external.ActiveObjects;
+import com.atlassian.bitbucket.cluster.ClusterService;
 import com.atlassian.bitbucket.hook.repository.RepositoryHookService;
 import com.atlassian.bitbucket.permission.Permission;
 import com.atlassian.bitbucket.permission.PermissionService;
 import com.atlassian.bitbucket.project.Project;
 import com.atlassian.bitbucket.project.ProjectService;
-import com.atlassian.bitbucket.repository.Repository;
 import com.atlassian.bitbucket.repository.RepositoryService;
 import com.atlassian.bitbucket.scope.ProjectScope;
-import com.atlassian.bitbucket.scope.RepositoryScope;
+import com.atlassian.bitbucket.server.StorageService;
 import com.atlassian.bitbucket.user.SecurityService;
 import com.atlassian.bitbucket.user.UserService;
+import com.atlassian.cache.CacheManager;
 import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
 import com.atlassian.sal.api.pluginsettings.PluginSettingsFactory;
-import com.atlassian.scheduler.JobRunner;
-import com.atlassian.scheduler.JobRunnerRequest;
-import com.atlassian.scheduler.JobRunnerResponse;
 import com.atlassian.scheduler.SchedulerService;
-import com.atlassian.scheduler.SchedulerServiceException;
-import com.atlassian.scheduler.config.JobConfig;
-import com.atlassian.scheduler.config.JobId;
-import com.atlassian.scheduler.config.JobRunnerKey;
-import com.atlassian.scheduler.config.RunMode;
-import com.atlassian.scheduler.config.Schedule;
 import com.ngs.stash.externalhooks.ExternalHooksSettings;
+import com.ngs.stash.externalhooks.FactorySummary;
 import com.ngs.stash.externalhooks.HooksCoordinator;
 import com.ngs.stash.externalhooks.HooksFactory;
+import com.ngs.stash.externalhooks.HooksFactoryJob;
 import com.ngs.stash.externalhooks.ao.FactoryState;
+import com.ngs.stash.externalhooks.ao.ProjectJob;
 import com.ngs.stash.externalhooks.dao.ExternalHooksSettingsDao;
 import com.ngs.stash.externalhooks.dao.FactoryStateDao;
+import com.ngs.stash.externalhooks.hook.HookConcurrency;
 import com.ngs.stash.externalhooks.util.Walker;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import io.atlassian.util.concurrent.atomic.AtomicInteger;
-
 @Path("/")
-public class Rest implements JobRunner {
+public class Rest {
   private static final Logger log = LoggerFactory.getLogger(Rest.class);
 
-  private SchedulerService schedulerService;
   private PermissionService permissionService;
-  private SecurityService securityService;
+  private ProjectService projectService;
+  private HooksCoordinator hooksCoordinator;
 
   private FactoryStateDao factoryStateDao;
   private ExternalHooksSettingsDao settingsDao;
-  private HooksFactory hooksFactory;
-  private Walker walker;
+  private HooksFactoryJob factoryJob;
+  private HookConcurrency hookConcurrency;
 
   public Rest(
       @ComponentImport HooksFactory hooksFactory,
@@ -77,24 +67,39 @@ public class Rest implements JobRunner {
       @ComponentImport ProjectService projectService,
       @ComponentImport PluginSettingsFactory pluginSettingsFactory,
       @ComponentImport SecurityService securityService,
+      @ComponentImport ClusterService clusterService,
+      @ComponentImport StorageService storageService,
+      @ComponentImport CacheManager cacheManager,
       @ComponentImport("permissions") PermissionService permissionService)
       throws IOException {
-    this.hooksFactory = hooksFactory;
     this.permissionService = permissionService;
-    this.schedulerService = schedulerService;
-    this.securityService = securityService;
+    this.projectService = projectService;
+    this.hooksCoordinator = hooksCoordinator;
 
-    this.settingsDao = new ExternalHooksSettingsDao(pluginSettingsFactory);
+    this.settingsDao = new ExternalHooksSettingsDao(pluginSettingsFactory, cacheManager);
 
     this.factoryStateDao = new FactoryStateDao(ao);
 
-    this.walker = new Walker(securityService, userService, projectService, repositoryService);
+    this.hookConcurrency = new HookConcurrency(storageService, clusterService);
+
+    this.factoryJob = new HooksFactoryJob(
+        schedulerService,
+        securityService,
+        clusterService,
+        factoryStateDao,
+        settingsDao,
+        hooksFactory,
+        new Walker(securityService, userService, projectService, repositoryService));
   }
 
   private boolean isSystemAdmin() {
     return permissionService.hasGlobalPermission(Permission.SYS_ADMIN);
   }
 
+  private boolean isProjectAdmin(Project project) {
+    return permissionService.hasProjectPermission(project, Permission.PROJECT_ADMIN);
+  }
+
   @GET
   @Produces({MediaType.APPLICATION_JSON})
   @Path("/settings")
@@ -128,6 +133,13 @@ public class Rest implements JobRunner {
 
     settingsDao.save(settings);
 
+    try {
+      hookConcurrency.apply(settingsDao);
+    } catch (IOException e) {
+      log.error("unable to write concurrency limits", e);
+      return Response.serverError().build();
+    }
+
     return Response.ok().build();
   }
 
@@ -140,9 +152,13 @@ public class Rest implements JobRunner {
       return Response.status(401).build();
     }
 
-    FactoryState state = factoryStateDao.find(id);
+    // progress is aggregated across shards processed by all nodes
+    FactorySummary summary = factoryJob.getSummary(id);
+    if (summary == null) {
+      return Response.status(404).build();
+    }
 
-    return Response.ok(new FactoryStateResponse(state)).build();
+    return Response.ok(new FactoryStateResponse(summary)).build();
   }
 
   @POST
@@ -154,112 +170,65 @@ public class Rest implements JobRunner {
       return Response.status(401).build();
     }
 
-    FactoryState state = factoryStateDao.create();
-
-    scheduleCreatingHooks(state.getID());
+    FactoryState state = factoryJob.schedule();
 
     return Response.ok(new FactoryStateResponse(state.getID())).build();
   }
 
-  private void scheduleCreatingHooks(int stateId) {
-    JobRunnerKey runner = JobRunnerKey.of("external-hooks-factory-runner");
-    JobId id = JobId.of("external-hooks-factory-job");
-
-    this.schedulerService.registerJobRunner(runner, this);
-
-    Map<String, Serializable> parameters = new HashMap<String, Serializable>();
-    parameters.put("state_id", stateId);
-
-    JobConfig job = JobConfig.forJobRunnerKey(runner)
-        .withSchedule(Schedule.runOnce(new Date()))
-        .withRunMode(RunMode.RUN_ONCE_PER_CLUSTER)
-        .withParameters(parameters);
-
-    try {
-      this.schedulerService.scheduleJob(id, job);
-    } catch (SchedulerServiceException e) {
-      log.error("Unable to schedule re-creating External Hooks", e);
+  @GET
+  @Produces({MediaType.APPLICATION_JSON})
+  @Path("/async/queue")
+  public Response getAsyncQueue() {
+    if (!isSystemAdmin()) {
+      return Response.status(401).build();
     }
+
+    // metrics of the node which serves the request
+    return Response.ok(new AsyncQueueResponse(hooksCoordinator.getAsyncQueue())).build();
   }
 
-  public JobRunnerResponse runJob(JobRunnerRequest request) {
-    JobConfig config = request.getJobConfig();
-    Map<String, Serializable> parameters = config.getParameters();
-    int stateId = (int) parameters.get("state_id");
+  @GET
+  @Produces({MediaType.APPLICATION_JSON})
+  @Path("/project/{projectKey}/hooks/{hookKey}/job")
+  public Response getProjectJob(
+      @PathParam("projectKey") String projectKey, @PathParam("hookKey") String hookKey) {
+    Project project = projectService.getByKey(projectKey);
+    if (project == null) {
+      return Response.status(404).build();
+    }
 
-    FactoryState state = factoryStateDao.find(Integer.valueOf(stateId));
-    if (state == null) {
-      log.error("scheduled factory state not found: {}", stateId);
-      return JobRunnerResponse.failed("scheduled factory state not found");
+    if (!isProjectAdmin(project)) {
+      return Response.status(401).build();
     }
 
-    securityService
-        .withPermission(Permission.SYS_ADMIN, "External Hook Factory: create hooks")
-        .call(() -> {
-          createHooks(state);
-          return null;
-        });
+    // enabling or disabling the project hook returns before its scripts are
+    // installed on repositories, the job reports how far it has gone
+    ProjectJob job = hooksCoordinator.findProjectJob(new ProjectScope(project), hookKey);
+    if (job == null) {
+      return Response.status(404).build();
+    }
 
-    return JobRunnerResponse.success();
+    return Response.ok(new ProjectJobResponse(job)).build();
   }
 
-  private void createHooks(FactoryState state) {
-    state.setStarted(true);
-    state.save();
-
-    AtomicInteger total = new AtomicInteger();
-
-    walker.walk(new Walker.Callback() {
-      @Override
-      public void onProject(Project project) {
-        total.incrementAndGet();
-      }
-
-      @Override
-      public void onRepository(Repository repository) {
-        total.incrementAndGet();
-      }
-    });
-
-    state.setTotal(total.get());
-    state.save();
-
-    // adding a small delay in order to spread the cpu/io load if bb instance
-    // has a lot of hooks installed
-    int millisDelay = 10;
-
-    AtomicInteger current = new AtomicInteger();
-    walker.walk(new Walker.Callback() {
-      @Override
-      public void onProject(Project project) {
-        hooksFactory.install(new ProjectScope(project));
-
-        state.setCurrent(current.incrementAndGet());
-        state.save();
-
-        delay(millisDelay);
-      }
-
-      @Override
-      public void onRepository(Repository repository) {
-        hooksFactory.install(new RepositoryScope(repository));
-
-        state.setCurrent(current.incrementAndGet());
-        state.save();
-
-        delay(millisDelay);
-      }
-    });
+  @GET
+  @Produces({MediaType.APPLICATION_JSON})
+  @Path("/project/job/{id}")
+  public Response getProjectJob(@PathParam("id") Integer id) {
+    ProjectJob job = hooksCoordinator.findProjectJob(id);
+    if (job == null) {
+      return Response.status(404).build();
+    }
 
-    state.setFinished(true);
-    state.save();
-  }
+    Project project = projectService.getById(job.getProjectId());
+    if (project == null) {
+      return Response.status(404).build();
+    }
 
-  private void delay(int ms) {
-    try {
-      Thread.sleep(ms);
-    } catch (InterruptedException ex) {
-      Thread.currentThread().interrupt();
+    if (!isProjectAdmin(project)) {
+      return Response.status(401).build();
     }
+
+    return Response.ok(new ProjectJobResponse(job)).build();
   }
 }
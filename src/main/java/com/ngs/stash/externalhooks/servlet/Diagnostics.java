@@ -5,6 +5,7 @@ import java.io.OutputStream;
 import java.net.URI;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.stream.Collectors;
 
 import javax.inject.Inject;
 import javax.servlet.ServletException;
@@ -12,18 +13,26 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import com.atlassian.bitbucket.cluster.ClusterService;
 import com.atlassian.bitbucket.hook.script.HookScript;
 import com.atlassian.bitbucket.hook.script.HookScriptService;
+import com.atlassian.bitbucket.server.StorageService;
 import com.atlassian.bitbucket.util.Page;
 import com.atlassian.bitbucket.util.PageRequest;
 import com.atlassian.bitbucket.util.PageRequestImpl;
+import com.atlassian.cache.CacheManager;
 import com.atlassian.plugin.spring.scanner.annotation.component.Scanned;
 import com.atlassian.plugin.spring.scanner.annotation.imports.ComponentImport;
 import com.atlassian.sal.api.auth.LoginUriProvider;
+import com.atlassian.sal.api.pluginsettings.PluginSettingsFactory;
 import com.atlassian.sal.api.user.UserKey;
 import com.atlassian.sal.api.user.UserManager;
 import com.atlassian.templaterenderer.TemplateRenderer;
 import com.ngs.stash.externalhooks.Const;
+import com.ngs.stash.externalhooks.HooksCoordinator;
+import com.ngs.stash.externalhooks.dao.ExternalHooksSettingsDao;
+import com.ngs.stash.externalhooks.hook.HookConcurrency;
+import com.ngs.stash.externalhooks.hook.HookEventLog;
 
 import org.json.simple.JSONObject;
 import org.slf4j.LoggerFactory;
@@ -37,14 +46,30 @@ public class Diagnostics extends HttpServlet {
   private TemplateRenderer templateRenderer;
   private LoginUriProvider loginUriProvider;
   private HookScriptService hookScriptService;
+  private HookEventLog timeoutLog;
+  private HookEventLog saturationLog;
+  private HookConcurrency hookConcurrency;
+  private ExternalHooksSettingsDao settingsDao;
+  private HooksCoordinator hooksCoordinator;
 
   @Inject
   public Diagnostics(
       @ComponentImport HookScriptService hookScriptService,
       @ComponentImport LoginUriProvider loginUriProvider,
       @ComponentImport UserManager userManager,
-      @ComponentImport TemplateRenderer templateRenderer) {
+      @ComponentImport TemplateRenderer templateRenderer,
+      @ComponentImport StorageService storageService,
+      @ComponentImport ClusterService clusterService,
+      @ComponentImport PluginSettingsFactory pluginSettingsFactory,
+      @ComponentImport CacheManager cacheManager,
+      @ComponentImport HooksCoordinator hooksCoordinator) {
     this.hookScriptService = hookScriptService;
+    this.hooksCoordinator = hooksCoordinator;
+    this.timeoutLog = new HookEventLog(storageService, clusterService, HookEventLog.TIMEOUTS);
+    this.saturationLog =
+        new HookEventLog(storageService, clusterService, HookEventLog.SATURATION);
+    this.hookConcurrency = new HookConcurrency(storageService, clusterService);
+    this.settingsDao = new ExternalHooksSettingsDao(pluginSettingsFactory, cacheManager);
     this.loginUriProvider = loginUriProvider;
     this.templateRenderer = templateRenderer;
     this.userManager = userManager;
@@ -77,6 +102,24 @@ public class Diagnostics extends HttpServlet {
 
     context.put("hook_scripts_total", this.getTotalHookScripts());
 
+    HookEventLog.Summary timeouts = timeoutLog.getSummary(20);
+    context.put("hook_timeouts_total", timeouts.getTotal());
+    context.put("hook_timeouts_latest", timeouts.getLatest());
+
+    // slots are local to the host, so usage is reported for the node serving the page
+    HookConcurrency.Usage usage = hookConcurrency.getUsage();
+    context.put("concurrency_global", usage.getGlobal());
+    context.put("concurrency_global_limit", settingsDao.getConcurrencyGlobal());
+    context.put("concurrency_hooks", formatUsage(usage.getHooks()));
+    context.put("concurrency_hook_limit", settingsDao.getConcurrencyHook());
+    context.put("concurrency_repositories", formatUsage(usage.getRepositories()));
+    context.put("concurrency_repository_limit", settingsDao.getConcurrencyRepository());
+    context.put("concurrency_wait", settingsDao.getConcurrencyWait());
+
+    HookEventLog.Summary saturation = saturationLog.getSummary(20);
+    context.put("hook_saturation_total", saturation.getTotal());
+    context.put("hook_saturation_latest", saturation.getLatest());
+
     ch.qos.logback.classic.Logger logger =
         (ch.qos.logback.classic.Logger) LoggerFactory.getLogger(Const.PACKAGE);
 
@@ -87,6 +130,12 @@ public class Diagnostics extends HttpServlet {
     templateRenderer.render("ui/diagnostics.vm", context, response.getWriter());
   }
 
+  private String formatUsage(Map<String, Integer> usage) {
+    return usage.entrySet().stream()
+        .map(entry -> entry.getKey() + ": " + entry.getValue())
+        .collect(Collectors.joining("\n"));
+  }
+
   private void dumpHookScripts(HttpServletRequest request, HttpServletResponse response)
       throws IOException {
     response.setContentType("application/octet-stream");
@@ -153,6 +202,10 @@ public class Diagnostics extends HttpServlet {
         context.put("success", Boolean.TRUE);
       }
 
+      if (request.getParameter("action").equals("remove_orphans")) {
+        context.put("orphans_removed", hooksCoordinator.sweepOrphans());
+      }
+
       if (request.getParameter("action").equals("change_log_level")) {
         ch.qos.logback.classic.Logger levelSet =
             (ch.qos.logback.classic.Logger) LoggerFactory.getLogger(Const.PACKAGE);
@@ -0,0 +1,106 @@
+package com.ngs.stash.externalhooks.util;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits rate and concurrency of background operations using their observed latency.
+ *
+ * <p>Operations run with full concurrency and without delays while their latency stays close to
+ * the lowest latency observed so far. Once it grows noticeably (the node is busy with something
+ * else), concurrency is halved and a pause proportional to the slowdown is added between
+ * operations; both recover gradually when latency goes back to normal.
+ *
+ * <p>Every successful {@link #acquire()} must be followed by {@link #release(long)}.
+ */
+public class AdaptiveThrottle {
+  // how fast the average latency follows new observations
+  private static final double SMOOTHING = 0.2;
+
+  // how fast the baseline latency follows average latency when it grows, it
+  // allows to adapt to permanent changes of the environment
+  private static final double BASELINE_DRIFT = 0.01;
+
+  // average latency greater than baseline multiplied by this factor means
+  // that the node is under load
+  private static final double OVERLOAD_FACTOR = 2.0;
+
+  private static final long MAX_BACKOFF_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  private final int maxConcurrency;
+  private final long intervalNanos;
+
+  private int limit;
+  private int inFlight;
+  private long nextStartNanos;
+  private long lastDecreaseNanos;
+  private double averageNanos;
+  private double baselineNanos;
+  private long backoffNanos;
+
+  /**
+   * @param targetRate maximum amount of operations per second, 0 means unlimited
+   * @param maxConcurrency maximum amount of operations running at the same time
+   */
+  public AdaptiveThrottle(int targetRate, int maxConcurrency) {
+    this.maxConcurrency = Math.max(1, maxConcurrency);
+    this.intervalNanos = targetRate > 0 ? TimeUnit.SECONDS.toNanos(1) / targetRate : 0;
+    this.limit = this.maxConcurrency;
+    this.nextStartNanos = System.nanoTime();
+  }
+
+  public void acquire() throws InterruptedException {
+    long waitNanos;
+
+    synchronized (this) {
+      while (inFlight >= limit) {
+        wait();
+      }
+
+      inFlight++;
+
+      long now = System.nanoTime();
+      long start = Math.max(now, nextStartNanos);
+
+      nextStartNanos = start + Math.max(intervalNanos, backoffNanos);
+      waitNanos = start - now;
+    }
+
+    if (waitNanos > 0) {
+      TimeUnit.NANOSECONDS.sleep(waitNanos);
+    }
+  }
+
+  /** @param latencyNanos time spent by the operation */
+  public synchronized void release(long latencyNanos) {
+    inFlight--;
+
+    if (averageNanos == 0) {
+      averageNanos = latencyNanos;
+    } else {
+      averageNanos += SMOOTHING * (latencyNanos - averageNanos);
+    }
+
+    if (baselineNanos == 0 || averageNanos < baselineNanos) {
+      baselineNanos = averageNanos;
+    } else {
+      baselineNanos += BASELINE_DRIFT * (averageNanos - baselineNanos);
+    }
+
+    long now = System.nanoTime();
+    if (averageNanos > baselineNanos * OVERLOAD_FACTOR) {
+      // decrease not more often than once per operation, otherwise all
+      // operations which are in flight would drop concurrency to 1 at once
+      if (now - lastDecreaseNanos > averageNanos) {
+        limit = Math.max(1, limit / 2);
+        lastDecreaseNanos = now;
+      }
+
+      backoffNanos = (long) Math.min(MAX_BACKOFF_NANOS, averageNanos - baselineNanos);
+    } else {
+      limit = Math.min(maxConcurrency, limit + 1);
+      backoffNanos = backoffNanos / 2;
+    }
+
+    notifyAll();
+  }
+}
@@ -0,0 +1,87 @@
+package com.ngs.stash.externalhooks.util;
+
+import java.util.concurrent.TimeUnit;
+
+import com.atlassian.cache.Cache;
+import com.atlassian.cache.CacheManager;
+import com.atlassian.cache.CacheSettings;
+import com.atlassian.cache.CacheSettingsBuilder;
+import com.atlassian.sal.api.pluginsettings.PluginSettings;
+
+/**
+ * Write-through cache of string {@link PluginSettings}.
+ *
+ * <p>Every {@link PluginSettings} call is a database round trip, while hook scripts look up the
+ * same keys over and over, mostly to find out that there is nothing installed. Values, including
+ * missing ones, are cached in a cluster-wide cache which is replicated via invalidation: writes go
+ * to the database first and then invalidate the key on other nodes, so they load it again on next
+ * access.
+ *
+ * <p>Caches with the same name are shared by all instances on the node.
+ */
+public class CachedPluginSettings implements PluginSettings {
+  private static final int MAX_ENTRIES = 100000;
+  private static final long EXPIRE_AFTER_ACCESS_MINUTES = 60;
+
+  // Cache doesn't store nulls, so missing values are stored as empty
+  // strings, nothing stores empty strings in plugin settings.
+  private static final String MISSING = "";
+
+  private final PluginSettings settings;
+  private final Cache<String, String> cache;
+
+  public CachedPluginSettings(PluginSettings settings, CacheManager cacheManager, String name) {
+    this.settings = settings;
+
+    CacheSettings cacheSettings = new CacheSettingsBuilder()
+        .remote()
+        .replicateViaInvalidation()
+        .maxEntries(MAX_ENTRIES)
+        .expireAfterAccess(EXPIRE_AFTER_ACCESS_MINUTES, TimeUnit.MINUTES)
+        .build();
+
+    this.cache = cacheManager.getCache(name, this::load, cacheSettings);
+  }
+
+  @Override
+  public Object get(String key) {
+    String value = cache.get(key);
+    if (value == null || value.equals(MISSING)) {
+      return null;
+    }
+
+    return value;
+  }
+
+  @Override
+  public Object put(String key, Object value) {
+    Object previous = settings.put(key, value);
+
+    if (value instanceof String && !value.equals(MISSING)) {
+      cache.put(key, (String) value);
+    } else {
+      cache.remove(key);
+    }
+
+    return previous;
+  }
+
+  @Override
+  public Object remove(String key) {
+    Object previous = settings.remove(key);
+
+    cache.put(key, MISSING);
+
+    return previous;
+  }
+
+  private String load(String key) {
+    Object value = settings.get(key);
+    if (!(value instanceof String)) {
+      // lists and maps are not cached, they are not used by hook scripts
+      return MISSING;
+    }
+
+    return (String) value;
+  }
+}
@@ -0,0 +1,59 @@
+package com.ngs.stash.externalhooks.util;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.Function;
+
+import com.atlassian.bitbucket.util.Page;
+import com.atlassian.bitbucket.util.PageRequest;
+import com.atlassian.bitbucket.util.PageRequestImpl;
+
+/**
+ * Lazily iterates over paged results of Bitbucket services. Next page is requested only when
+ * consumer reaches the end of the current one, so abandoning iterator stops paging.
+ */
+public class PagedIterator<T> implements Iterator<T> {
+  private Function<PageRequest, Page<T>> loader;
+  private PageRequest next;
+  private Iterator<T> current = Collections.emptyIterator();
+
+  /**
+   * @param loader
+   * @param start index of the first item, items before it are not requested at all
+   * @param pageSize
+   */
+  public PagedIterator(Function<PageRequest, Page<T>> loader, int start, int pageSize) {
+    this.loader = loader;
+    this.next = new PageRequestImpl(start, pageSize);
+  }
+
+  @Override
+  public boolean hasNext() {
+    while (!current.hasNext()) {
+      if (next == null) {
+        return false;
+      }
+
+      Page<T> page = loader.apply(next);
+      if (page.getSize() == 0) {
+        next = null;
+        return false;
+      }
+
+      current = page.getValues().iterator();
+      next = page.getNextPageRequest();
+    }
+
+    return true;
+  }
+
+  @Override
+  public T next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+
+    return current.next();
+  }
+}
@@ -1,9 +1,29 @@
 package com.ngs.stash.externalhooks.util;
 
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import com.atlassian.bitbucket.permission.Permission;
+import com.atlassian.bitbucket.project.PersonalProject;
 import com.atlassian.bitbucket.project.Project;
 import com.atlassian.bitbucket.project.ProjectService;
 import com.atlassian.bitbucket.repository.Repository;
 import com.atlassian.bitbucket.repository.RepositoryService;
+import com.atlassian.bitbucket.scope.ProjectScope;
+import com.atlassian.bitbucket.scope.RepositoryScope;
+import com.atlassian.bitbucket.scope.Scope;
 import com.atlassian.bitbucket.user.ApplicationUser;
 import com.atlassian.bitbucket.user.SecurityService;
 import com.atlassian.bitbucket.user.UserSearchRequest;
@@ -11,13 +31,19 @@ import com.atlassian.bitbucket.user.UserService;
 import com.atlassian.bitbucket.util.Page;
 import com.atlassian.bitbucket.util.PageRequest;
 import com.atlassian.bitbucket.util.PageRequestImpl;
+import com.google.common.collect.Iterators;
 
 public class Walker {
+  public static final int DEFAULT_PAGE_SIZE = 10;
+
   private RepositoryService repositoryService;
   private ProjectService projectService;
   private UserService userService;
   private SecurityService securityService;
 
+  private volatile int pageSize = DEFAULT_PAGE_SIZE;
+  private volatile boolean prefetch = false;
+
   public Walker(
       SecurityService securityService,
       UserService userService,
@@ -29,103 +55,278 @@ public class Walker {
     this.repositoryService = repositoryService;
   }
 
+  /**
+   * Sets amount of items requested from Bitbucket services at once.
+   *
+   * @param pageSize
+   */
+  public void setPageSize(int pageSize) {
+    this.pageSize = Math.max(1, Math.min(PageRequest.MAX_PAGE_LIMIT, pageSize));
+  }
+
+  /**
+   * Enables loading of the next page in background while callbacks process the current one.
+   *
+   * <p>Pages are prefetched from another thread with SYS_ADMIN permission, so it should be enabled
+   * only for walkers used by background jobs which already run as system administrator.
+   *
+   * @param prefetch
+   */
+  public void setPrefetch(boolean prefetch) {
+    this.prefetch = prefetch;
+  }
+
   public void walk(Callback callback) {
-    walkProjects(callback);
+    walkProjects(project -> {
+      walk(project, callback);
+
+      callback.onProject(project);
+    });
 
-    walkUsers(callback);
+    walkUsers(user -> walk(user, callback));
   }
 
-  private void walkProjects(Callback callback) {
-    PageRequest page = new PageRequestImpl(0, 10);
+  /**
+   * Walks over projects only, repositories of the projects are not visited.
+   *
+   * @param callback
+   */
+  public void walkProjects(ProjectCallback callback) {
+    walkPages(page -> this.projectService.findAll(page), project -> callback.onProject(project));
+  }
 
-    while (true) {
-      Page<Project> projects = this.projectService.findAll(page);
-      if (projects.getSize() == 0) {
-        break;
-      }
+  /**
+   * Walks over users only, personal repositories of the users are not visited.
+   *
+   * @param callback
+   */
+  public void walkUsers(UserCallback callback) {
+    UserSearchRequest searchRequest = (new UserSearchRequest.Builder()).build();
 
-      projects.stream().forEach(project -> {
-        walk(project, callback);
+    walkPages(
+        page -> this.userService.search(
+            searchRequest, new PageRequestImpl(page.getStart(), page.getLimit())),
+        user -> callback.onUser(user));
+  }
 
-        callback.onProject(project);
-      });
+  public void walk(ApplicationUser user, RepositoryCallback callback) {
+    walkPages(
+        page -> this.repositoryService.findByOwner(user, page),
+        repo -> callback.onRepository(repo));
+  }
 
-      page = projects.getNextPageRequest();
-      if (page == null) {
-        break;
-      }
-    }
+  public void walk(Project project, RepositoryCallback callback) {
+    walkPages(
+        page -> this.repositoryService.findByProjectId(project.getId(), page),
+        repo -> callback.onRepository(repo));
   }
 
-  private void walkUsers(Callback callback) {
-    int start = 0;
-    int limit = 10;
+  /**
+   * Collects ids of projects of the instance without visiting repositories. Projects are requested
+   * in pages as large as the service permits, so it takes just a few queries.
+   */
+  public Ids scanProjects() {
+    return scan(page -> this.projectService.findAll(page), Project::getId);
+  }
+
+  /** Collects ids of users of the instance, see {@link #scanProjects()}. */
+  public Ids scanUsers() {
     UserSearchRequest searchRequest = (new UserSearchRequest.Builder()).build();
-    while (true) {
-      //
-      PageRequest page = new PageRequestImpl(start, limit);
-      Page<ApplicationUser> users = this.userService.search(searchRequest, page);
-      if (users.getSize() == 0) {
-        break;
-      }
 
-      users.stream().forEach((user) -> {
-        walk(user, callback);
-      });
+    return scan(
+        page -> this.userService.search(
+            searchRequest, new PageRequestImpl(page.getStart(), page.getLimit())),
+        ApplicationUser::getId);
+  }
+
+  private <T> Ids scan(Function<PageRequest, Page<T>> loader, ToIntFunction<T> id) {
+    IntStream.Builder ids = IntStream.builder();
 
-      PageRequest nextPage = users.getNextPageRequest();
-      if (nextPage == null) {
+    PageRequest page = new PageRequestImpl(0, PageRequest.MAX_PAGE_LIMIT);
+    while (page != null) {
+      Page<T> items = loader.apply(page);
+      if (items.getSize() == 0) {
         break;
       }
 
-      start = nextPage.getStart();
-      limit = nextPage.getLimit();
+      for (T item : items.getValues()) {
+        ids.add(id.applyAsInt(item));
+      }
+
+      page = items.getNextPageRequest();
     }
+
+    return new Ids(ids.build().sorted().distinct().toArray());
   }
 
-  private void walk(ApplicationUser user, Callback callback) {
-    PageRequest page = new PageRequestImpl(0, 10);
+  /**
+   * Returns lazily evaluated stream over projects with the given ids: every project followed by its
+   * repositories. Projects are looked up by id, ids of projects which have been deleted meanwhile
+   * and personal projects are skipped, see {@link #streamUsers(int[])}.
+   *
+   * <p>Pages of repositories are requested only when consumer reaches the end of the previous one,
+   * so slow consumer slows down paging and short-circuiting operations stop it.
+   *
+   * @param ids ids of projects, usually a range of {@link #scanProjects()}
+   */
+  public Stream<Scope> streamProjects(int[] ids) {
+    return Arrays.stream(ids)
+        .mapToObj(id -> this.projectService.getById(id))
+        .filter(project -> project != null && !(project instanceof PersonalProject))
+        .flatMap(project -> Stream.concat(
+            Stream.<Scope>of(new ProjectScope(project)), stream(iterator(project))));
+  }
 
-    while (true) {
-      Page<Repository> repos = this.repositoryService.findByOwner(user, page);
-      if (repos.getSize() == 0) {
-        break;
-      }
+  /**
+   * Returns lazily evaluated stream over personal repositories of users with the given ids, see
+   * {@link #streamProjects(int[])}.
+   *
+   * @param ids ids of users, usually a range of {@link #scanUsers()}
+   */
+  public Stream<Scope> streamUsers(int[] ids) {
+    return Arrays.stream(ids)
+        .mapToObj(id -> this.userService.getUserById(id))
+        .filter(user -> user != null)
+        .flatMap(user -> stream(iterator(user)));
+  }
 
-      repos.stream().forEach(repo -> callback.onRepository(repo));
+  private Iterator<Scope> iterator(Project project) {
+    Iterator<Repository> repositories =
+        paged(page -> this.repositoryService.findByProjectId(project.getId(), page));
 
-      page = repos.getNextPageRequest();
-      if (page == null) {
-        break;
-      }
-    }
+    return Iterators.transform(
+        repositories, (Repository repository) -> new RepositoryScope(repository));
   }
 
-  public void walk(Project project, RepositoryCallback callback) {
-    PageRequest page = new PageRequestImpl(0, 10);
+  private Iterator<Scope> iterator(ApplicationUser user) {
+    Iterator<Repository> repositories =
+        paged(page -> this.repositoryService.findByOwner(user, page));
 
-    while (true) {
-      Page<Repository> repos = this.repositoryService.findByProjectId(project.getId(), page);
-      if (repos.getSize() == 0) {
-        break;
-      }
+    return Iterators.transform(
+        repositories, (Repository repository) -> new RepositoryScope(repository));
+  }
 
-      repos.stream().forEach(repo -> callback.onRepository(repo));
+  private static <T> Stream<T> stream(Iterator<T> iterator) {
+    return StreamSupport.stream(
+        Spliterators.spliteratorUnknownSize(
+            iterator, Spliterator.ORDERED | Spliterator.NONNULL),
+        false);
+  }
 
-      page = repos.getNextPageRequest();
-      if (page == null) {
-        break;
+  private <T> Iterator<T> paged(Function<PageRequest, Page<T>> loader) {
+    return new PagedIterator<>(loader, 0, pageSize);
+  }
+
+  private <T> void walkPages(Function<PageRequest, Page<T>> loader, Consumer<T> consumer) {
+    ExecutorService prefetcher = null;
+
+    try {
+      Page<T> page = loader.apply(new PageRequestImpl(0, pageSize));
+
+      while (page.getSize() > 0) {
+        PageRequest next = page.getNextPageRequest();
+
+        Future<Page<T>> prefetched = null;
+        if (next != null && prefetch) {
+          // The thread is created only when there is more than one page,
+          // most of projects fit into a single one.
+          if (prefetcher == null) {
+            prefetcher = Executors.newSingleThreadExecutor(runnable -> {
+              Thread thread = new Thread(runnable, "external-hooks-walker-prefetch");
+              thread.setDaemon(true);
+              return thread;
+            });
+          }
+
+          prefetched = prefetcher.submit(() -> securityService
+              .withPermission(Permission.SYS_ADMIN, "External Hook Plugin: prefetching page")
+              .call(() -> loader.apply(next)));
+        }
+
+        page.stream().forEach(consumer);
+
+        if (next == null) {
+          break;
+        }
+
+        if (prefetched != null) {
+          page = await(prefetched);
+        } else {
+          page = loader.apply(next);
+        }
+      }
+    } finally {
+      if (prefetcher != null) {
+        prefetcher.shutdownNow();
       }
     }
   }
 
-  public interface Callback extends RepositoryCallback {
-    void onProject(Project project);
+  private <T> Page<T> await(Future<Page<T>> future) {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("interrupted while prefetching page", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+
+      throw new IllegalStateException("unable to prefetch page", e.getCause());
+    }
+  }
 
+  /** Sorted ids of existing projects or users. */
+  public static class Ids {
+    private final int[] ids;
+
+    private Ids(int[] ids) {
+      this.ids = ids;
+    }
+
+    public int getCount() {
+      return ids.length;
+    }
+
+    /** Returns the greatest id, 0 if there are no items. */
+    public int getMax() {
+      return ids.length == 0 ? 0 : ids[ids.length - 1];
+    }
+
+    /**
+     * Returns ids in the given range.
+     *
+     * @param fromId first id of the range (inclusive)
+     * @param toId last id of the range (exclusive)
+     */
+    public int[] getIds(int fromId, int toId) {
+      int from = indexOf(fromId);
+      int to = indexOf(toId);
+
+      return Arrays.copyOfRange(ids, from, Math.max(from, to));
+    }
+
+    // Index of the first id which is not less than the given one.
+    private int indexOf(int id) {
+      int index = Arrays.binarySearch(ids, id);
+      return index >= 0 ? index : -index - 1;
+    }
+  }
+
+  public interface Callback extends ProjectCallback, RepositoryCallback {
     // there is no onUser method because this Callback is expected to be used in combination with
     // Hooks Settings and there is no User Scope for Hooks.
   }
 
+  public interface ProjectCallback {
+    void onProject(Project project);
+  }
+
+  public interface UserCallback {
+    void onUser(ApplicationUser user);
+  }
+
   public interface RepositoryCallback {
     void onRepository(Repository repository);
   }
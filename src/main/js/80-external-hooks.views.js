@@ -105,9 +105,10 @@ var ViewGlobalSettings = function (context, api) {
                     )
                 }
             } else {
+                // total is estimated until the job is finished
                 this._$progress.setText(
                     "Configuring hook "
-                        + state.current + " of " + state.total + "…"
+                        + state.current + " of ~" + state.total + "…"
                 );
             }
         } else {
@@ -0,0 +1,139 @@
+
+# Concurrency limits of external hooks. Limits are written by the add-on to
+# $EXTERNAL_HOOKS_LIMITS, 0 means no limit. Every limit is a directory of
+# slot files, the slot is held by locking its file until the script exits.
+# Slots of every host are kept in its own directory under $EXTERNAL_HOOKS_SLOTS.
+
+EXTERNAL_HOOKS_LIMIT_GLOBAL=0
+EXTERNAL_HOOKS_LIMIT_HOOK=0
+EXTERNAL_HOOKS_LIMIT_REPOSITORY=0
+EXTERNAL_HOOKS_LIMIT_WAIT=0
+
+if [[ -f "$EXTERNAL_HOOKS_LIMITS" ]]; then
+    source "$EXTERNAL_HOOKS_LIMITS"
+fi
+
+external_hooks_slots=()
+external_hooks_fds=()
+external_hooks_queued=
+external_hooks_dir="$EXTERNAL_HOOKS_SLOTS/$HOSTNAME"
+
+# Slots are still locked at exit, so pids are cleared before they are released.
+external_hooks_release() {
+    local slot
+    for slot in "${external_hooks_slots[@]}"; do
+        : > "$slot" 2>/dev/null
+    done
+}
+
+# Slot files are opened for writing, so directories of slots must be private
+# to the owner and must not be symbolic links pointing somewhere else.
+external_hooks_private() {
+    local dir
+
+    for dir in "$EXTERNAL_HOOKS_SLOTS" "$external_hooks_dir"; do
+        if [[ -L "$dir" ]]; then
+            return 1
+        fi
+
+        mkdir -m 700 "$dir" 2>/dev/null
+
+        if [[ -L "$dir" || ! -d "$dir" || ! -O "$dir" ]]; then
+            return 1
+        fi
+
+        if [[ "$(stat -c %a "$dir" 2>/dev/null)" != 700 ]]; then
+            return 1
+        fi
+    done
+}
+
+# Runs the command without descriptors of held slots, so neither the hook nor
+# processes it leaves running in background keep the slots locked after exit.
+external_hooks_run() (
+    local fd
+    for fd in "${external_hooks_fds[@]}"; do
+        exec {fd}>&-
+    done
+    exec "$@"
+)
+
+# Returns 1 if no slot is released until the deadline. Limits are not enforced
+# when slots can't be used at all, so broken setup doesn't reject operations.
+external_hooks_acquire() {
+    local dir="$external_hooks_dir/$1"
+    local limit="$2"
+    local slot fd
+
+    if [[ "$limit" -le 0 ]] || ! command -v flock >/dev/null; then
+        return 0
+    fi
+
+    if ! external_hooks_private || ! mkdir -p "$dir" 2>/dev/null; then
+        return 0
+    fi
+
+    while true; do
+        for ((slot = 0; slot < limit; slot++)); do
+            if ! { exec {fd}<>"$dir/$slot"; } 2>/dev/null; then
+                return 0
+            fi
+
+            if flock -n "$fd"; then
+                printf '%s\n' "$$" >&"$fd"
+                external_hooks_slots+=("$dir/$slot")
+                external_hooks_fds+=("$fd")
+                return 0
+            fi
+
+            exec {fd}>&-
+        done
+
+        if [[ $SECONDS -ge $external_hooks_deadline ]]; then
+            return 1
+        fi
+
+        external_hooks_queued="${1%%/*}"
+        sleep 0.5
+    done
+}
+
+# Appends "timestamp host hook project/repository limit outcome waited-seconds".
+external_hooks_saturated() {
+    printf '%s %s %s %s/%s %s %s %s\n' \
+        "$(date +%s)" "$(hostname)" "$EXTERNAL_HOOKS_ID" \
+        "$BB_PROJECT_KEY" "$BB_REPO_SLUG" "$1" "$2" "$((SECONDS - external_hooks_started))" \
+        >> "$EXTERNAL_HOOKS_SATURATION_LOG" 2>/dev/null
+}
+
+trap external_hooks_release EXIT
+
+external_hooks_started=$SECONDS
+external_hooks_deadline=$((SECONDS + EXTERNAL_HOOKS_LIMIT_WAIT))
+
+# The most specific limit goes first, so slots of wider limits are not held
+# while waiting for the repository.
+if ! external_hooks_acquire \
+        "repository/$BB_PROJECT_KEY/$BB_REPO_SLUG" "$EXTERNAL_HOOKS_LIMIT_REPOSITORY"; then
+    external_hooks_limit=repository
+elif ! external_hooks_acquire "hook/$EXTERNAL_HOOKS_ID" "$EXTERNAL_HOOKS_LIMIT_HOOK"; then
+    external_hooks_limit=hook
+elif ! external_hooks_acquire "global" "$EXTERNAL_HOOKS_LIMIT_GLOBAL"; then
+    external_hooks_limit=global
+else
+    external_hooks_limit=
+fi
+
+if [[ "$external_hooks_limit" ]]; then
+    external_hooks_saturated "$external_hooks_limit" rejected
+    echo "Too many external hooks are running on the Bitbucket node" \
+        "($external_hooks_limit limit), the operation is rejected." \
+        "Try again later or contact your Bitbucket administrator." >&2
+    exit 1
+fi
+
+if [[ "$external_hooks_queued" ]]; then
+    external_hooks_saturated "$external_hooks_queued" queued
+fi
+
+# end of hook-script.concurrency.bash resource
@@ -0,0 +1,140 @@
+package com.ngs.stash.externalhooks.hook;
+
+import static com.ngs.stash.externalhooks.hook.AsyncHookQueueTest.append;
+import static com.ngs.stash.externalhooks.hook.AsyncHookQueueTest.read;
+import static com.ngs.stash.externalhooks.hook.AsyncHookQueueTest.waitFor;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+
+import com.atlassian.bitbucket.repository.RefChange;
+import com.atlassian.bitbucket.repository.RefChangeType;
+import com.atlassian.bitbucket.repository.SimpleMinimalRef;
+import com.atlassian.bitbucket.repository.SimpleRefChange;
+import com.atlassian.bitbucket.repository.StandardRefType;
+import com.ngs.stash.externalhooks.hook.AsyncHookQueue.OverflowPolicy;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class AsyncHookBatcherTest {
+  private static final String KEY = "external-post-receive-hook:1:0";
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  private File spoolFile;
+  private File output;
+  private AsyncHookSpool spool;
+  private AsyncHookQueue queue;
+  private AsyncHookBatcher batcher;
+
+  @Before
+  public void setUp() throws Exception {
+    spoolFile = new File(temp.getRoot(), "node.spool");
+    output = temp.newFile();
+
+    spool = new AsyncHookSpool(() -> spoolFile);
+    queue = new AsyncHookQueue(MapPluginSettings.async(1, 10, OverflowPolicy.BLOCK), spool);
+    batcher = new AsyncHookBatcher(queue);
+  }
+
+  @After
+  public void tearDown() {
+    batcher.stop();
+    queue.stop();
+  }
+
+  @Test
+  public void testPushesOfWindowAreMerged() throws Exception {
+    batcher.add(
+        KEY,
+        append(output, "first"),
+        Arrays.asList(change("master", "a", "b"), change("feature", "x", "y")),
+        200,
+        0);
+    batcher.add(KEY, append(output, "second"), changes("master", "b", "c"), 200, 0);
+
+    waitFor(() -> queue.getCompleted() == 1);
+
+    assertEquals("a c refs/heads/master\nx y refs/heads/feature\n", read(output));
+    assertEquals(1, queue.getSubmitted());
+  }
+
+  @Test
+  public void testFullBatchIsSubmittedRightAway() throws Exception {
+    batcher.add(KEY, append(output, "first"), changes("master", "a", "b"), 60000, 2);
+    batcher.add(KEY, append(output, "second"), changes("master", "b", "c"), 60000, 2);
+
+    waitFor(() -> queue.getCompleted() == 1);
+
+    assertEquals("a c refs/heads/master\n", read(output));
+  }
+
+  @Test
+  public void testTimerOfFullBatchDoesNotFlushNextBatch() throws Exception {
+    batcher.add(KEY, append(output, "first"), changes("master", "a", "b"), 1000, 2);
+    batcher.add(KEY, append(output, "second"), changes("master", "b", "c"), 1000, 2);
+
+    Thread.sleep(500);
+
+    batcher.add(KEY, append(output, "third"), changes("master", "c", "d"), 1000, 2);
+
+    // the timer of the first batch would have fired by now
+    Thread.sleep(700);
+
+    assertEquals(1, queue.getSubmitted());
+
+    waitFor(() -> queue.getCompleted() == 2);
+
+    assertEquals("a c refs/heads/master\nc d refs/heads/master\n", read(output));
+  }
+
+  @Test
+  public void testPushesCancellingOutAreNotExecuted() throws Exception {
+    batcher.add(KEY, append(output, "first"), changes("master", "a", "b"), 100, 0);
+    batcher.add(KEY, append(output, "second"), changes("master", "b", "a"), 100, 0);
+
+    // held pushes are released
+    waitFor(() -> spool.getPending() == 0);
+
+    assertEquals(0, queue.getSubmitted());
+  }
+
+  @Test
+  public void testPushesOfPendingBatchAreSpooled() throws Exception {
+    batcher.add(KEY, append(output, "first"), changes("master", "a", "b"), 60000, 0);
+    batcher.add(KEY, append(output, "second"), changes("master", "b", "c"), 60000, 0);
+
+    AsyncHookSpool next = new AsyncHookSpool(() -> spoolFile);
+    Map<Long, AsyncHookQueue.Job> jobs = next.recover();
+    next.close();
+
+    assertEquals(2, jobs.size());
+    assertEquals(0, queue.getSubmitted());
+  }
+
+  private static Collection<RefChange> changes(String branch, String from, String to) {
+    return Collections.singletonList(change(branch, from, to));
+  }
+
+  private static RefChange change(String branch, String from, String to) {
+    return new SimpleRefChange.Builder()
+        .ref(new SimpleMinimalRef.Builder()
+            .id("refs/heads/" + branch)
+            .displayId(branch)
+            .type(StandardRefType.BRANCH)
+            .build())
+        .fromHash(from)
+        .toHash(to)
+        .type(RefChangeType.UPDATE)
+        .build();
+  }
+}
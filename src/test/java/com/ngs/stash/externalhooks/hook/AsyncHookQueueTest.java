@@ -0,0 +1,169 @@
+package com.ngs.stash.externalhooks.hook;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.function.BooleanSupplier;
+
+import com.ngs.stash.externalhooks.hook.AsyncHookQueue.OverflowPolicy;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class AsyncHookQueueTest {
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  private File spoolFile;
+  private AsyncHookSpool spool;
+  private AsyncHookQueue queue;
+
+  @Before
+  public void setUp() {
+    spoolFile = new File(temp.getRoot(), "node.spool");
+    spool = new AsyncHookSpool(() -> spoolFile);
+  }
+
+  @After
+  public void tearDown() {
+    if (queue != null) {
+      queue.stop();
+    }
+  }
+
+  @Test
+  public void testSubmittedExecutionIsCompleted() throws Exception {
+    queue = new AsyncHookQueue(MapPluginSettings.async(1, 10, OverflowPolicy.BLOCK), spool);
+
+    File output = temp.newFile();
+    queue.submit(new AsyncHookQueue.Job(
+        "cat",
+        Arrays.asList("/bin/sh", "-c", "cat > \"$OUTPUT\""),
+        Collections.singletonMap("OUTPUT", output.getPath()),
+        "stdin of the hook"));
+
+    waitFor(() -> queue.getCompleted() == 1);
+    waitFor(() -> spool.getPending() == 0);
+
+    assertEquals("stdin of the hook", read(output));
+    assertEquals(1, queue.getSubmitted());
+    assertEquals(0, queue.getDropped());
+  }
+
+  @Test
+  public void testHungExecutionIsKilledAndCompleted() throws Exception {
+    queue = new AsyncHookQueue(MapPluginSettings.async(1, 10, OverflowPolicy.BLOCK, 1), spool);
+
+    queue.submit(sleep("hung"));
+
+    waitFor(() -> queue.getFailed() == 1);
+    waitFor(() -> spool.getPending() == 0);
+
+    assertEquals(0, queue.getCompleted());
+  }
+
+  @Test
+  public void testDropNewestDropsExecutionsWhenQueueIsFull() throws Exception {
+    queue = new AsyncHookQueue(MapPluginSettings.async(1, 1, OverflowPolicy.DROP_NEWEST), spool);
+
+    queue.submit(sleep("running"));
+    waitFor(() -> queue.getActive() == 1);
+
+    queue.submit(sleep("queued"));
+    queue.submit(sleep("dropped"));
+
+    assertEquals(3, queue.getSubmitted());
+    assertEquals(1, queue.getDropped());
+    assertEquals(1, queue.getDepth());
+  }
+
+  @Test
+  public void testReplayedExecutionsAreNotDropped() throws Exception {
+    File output = temp.newFile();
+
+    AsyncHookSpool previous = new AsyncHookSpool(() -> spoolFile);
+    for (int i = 0; i < 3; i++) {
+      previous.append(append(output, "replayed " + i));
+    }
+    previous.close();
+
+    queue = new AsyncHookQueue(MapPluginSettings.async(1, 1, OverflowPolicy.DROP_NEWEST), spool);
+
+    queue.replay();
+
+    waitFor(() -> queue.getCompleted() == 3);
+    waitFor(() -> spool.getPending() == 0);
+
+    assertEquals("replayed 0\nreplayed 1\nreplayed 2\n", read(output));
+    assertEquals(0, queue.getDropped());
+  }
+
+  @Test
+  public void testHeldExecutionIsReplayedUntilReleased() throws Exception {
+    queue = new AsyncHookQueue(MapPluginSettings.async(1, 10, OverflowPolicy.BLOCK), spool);
+
+    long offset = queue.hold(sleep("held"));
+    queue.stop();
+
+    AsyncHookSpool next = new AsyncHookSpool(() -> spoolFile);
+    assertEquals(Collections.singleton(offset), next.recover().keySet());
+
+    next.complete(offset);
+    assertEquals(0, next.getPending());
+    next.close();
+  }
+
+  @Test
+  public void testHeldExecutionsAreCompletedWithTheirBatch() throws Exception {
+    queue = new AsyncHookQueue(MapPluginSettings.async(1, 10, OverflowPolicy.BLOCK), spool);
+
+    File output = temp.newFile();
+
+    long first = queue.hold(append(output, "first"));
+    long second = queue.hold(append(output, "second"));
+
+    queue.submit(append(output, "batch"), Arrays.asList(first, second));
+
+    waitFor(() -> queue.getCompleted() == 1);
+    waitFor(() -> spool.getPending() == 0);
+
+    assertEquals("batch\n", read(output));
+  }
+
+  static AsyncHookQueue.Job append(File output, String line) {
+    return new AsyncHookQueue.Job(
+        line,
+        Arrays.asList("/bin/sh", "-c", "cat >> \"$OUTPUT\""),
+        Collections.singletonMap("OUTPUT", output.getPath()),
+        line + "\n");
+  }
+
+  static void waitFor(BooleanSupplier condition) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 10000;
+    while (!condition.getAsBoolean()) {
+      if (System.currentTimeMillis() > deadline) {
+        fail("condition is not met in 10 seconds");
+      }
+
+      Thread.sleep(10);
+    }
+  }
+
+  static String read(File file) throws IOException {
+    return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+  }
+
+  private static AsyncHookQueue.Job sleep(String name) {
+    return new AsyncHookQueue.Job(
+        name, Arrays.asList("/bin/sleep", "5"), Collections.emptyMap(), "");
+  }
+}
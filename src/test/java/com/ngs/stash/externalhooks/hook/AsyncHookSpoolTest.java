@@ -0,0 +1,201 @@
+package com.ngs.stash.externalhooks.hook;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class AsyncHookSpoolTest {
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  @Test
+  public void testRecoverReturnsPendingExecutions() throws IOException {
+    File file = new File(temp.getRoot(), "node.spool");
+
+    AsyncHookSpool spool = new AsyncHookSpool(() -> file);
+    spool.append(job("first"));
+    spool.append(job("second"));
+    spool.close();
+
+    List<AsyncHookQueue.Job> jobs = recover(file);
+
+    assertEquals(2, jobs.size());
+    assertEquals("first", jobs.get(0).getDescription());
+    assertEquals(Arrays.asList("/bin/true", "first"), jobs.get(0).getCommand());
+    assertEquals(Collections.singletonMap("BB_REPO_SLUG", "first"), jobs.get(0).getEnvironment());
+    assertEquals("stdin of first", jobs.get(0).getStdin());
+    assertEquals("second", jobs.get(1).getDescription());
+  }
+
+  @Test
+  public void testRecoverSkipsCompletedExecutions() throws IOException {
+    File file = new File(temp.getRoot(), "node.spool");
+
+    AsyncHookSpool spool = new AsyncHookSpool(() -> file);
+    long first = spool.append(job("first"));
+    spool.append(job("second"));
+    long third = spool.append(job("third"));
+    spool.complete(first);
+    spool.complete(third);
+    spool.close();
+
+    // the third one is after the checkpoint, so it's replayed again
+    List<AsyncHookQueue.Job> jobs = recover(file);
+
+    assertEquals(2, jobs.size());
+    assertEquals("second", jobs.get(0).getDescription());
+    assertEquals("third", jobs.get(1).getDescription());
+  }
+
+  @Test
+  public void testSpoolIsCompactedWhenAllExecutionsAreCompleted() throws IOException {
+    File file = new File(temp.getRoot(), "node.spool");
+
+    AsyncHookSpool spool = new AsyncHookSpool(() -> file);
+    long first = spool.append(job("first"));
+    long second = spool.append(job("second"));
+    spool.complete(second);
+    spool.complete(first);
+
+    // only the header is left
+    assertEquals(Long.BYTES, file.length());
+
+    long third = spool.append(job("third"));
+    spool.close();
+
+    assertTrue(third > second);
+
+    List<AsyncHookQueue.Job> jobs = recover(file);
+
+    assertEquals(1, jobs.size());
+    assertEquals("third", jobs.get(0).getDescription());
+  }
+
+  @Test
+  public void testSpoolIsCompactedWhileExecutionsArePending() throws IOException {
+    File file = new File(temp.getRoot(), "node.spool");
+
+    AsyncHookSpool spool = new AsyncHookSpool(() -> file, 1);
+    long first = spool.append(job("first"));
+    long second = spool.append(job("second"));
+    long third = spool.append(job("third"));
+
+    long size = file.length();
+
+    spool.complete(first);
+    assertEquals(size, file.length());
+
+    // completed records are larger than the rest now
+    spool.complete(second);
+    assertTrue(file.length() < size);
+
+    long fourth = spool.append(job("fourth"));
+    spool.close();
+
+    spool = new AsyncHookSpool(() -> file);
+    Map<Long, AsyncHookQueue.Job> jobs = spool.recover();
+
+    assertEquals(Arrays.asList(third, fourth), new ArrayList<>(jobs.keySet()));
+    assertEquals("third", jobs.get(third).getDescription());
+    assertEquals("fourth", jobs.get(fourth).getDescription());
+
+    spool.complete(third);
+    spool.complete(fourth);
+    spool.close();
+
+    assertTrue(recover(file).isEmpty());
+  }
+
+  @Test
+  public void testExecutionsCompletedBeforeRecoveryDontHideInterruptedOnes() throws IOException {
+    File file = new File(temp.getRoot(), "node.spool");
+
+    AsyncHookSpool spool = new AsyncHookSpool(() -> file);
+    spool.append(job("interrupted"));
+    spool.close();
+
+    // a push arrives before interrupted executions are replayed
+    spool = new AsyncHookSpool(() -> file);
+    spool.complete(spool.append(job("new")));
+
+    Map<Long, AsyncHookQueue.Job> jobs = spool.recover();
+    spool.close();
+
+    assertEquals(1, jobs.size());
+    assertEquals("interrupted", jobs.values().iterator().next().getDescription());
+    assertEquals("interrupted", recover(file).get(0).getDescription());
+  }
+
+  @Test
+  public void testRecoveredExecutionsArePendingUntilCompleted() throws IOException {
+    File file = new File(temp.getRoot(), "node.spool");
+
+    AsyncHookSpool spool = new AsyncHookSpool(() -> file);
+    spool.append(job("first"));
+    spool.close();
+
+    spool = new AsyncHookSpool(() -> file);
+    Map<Long, AsyncHookQueue.Job> jobs = spool.recover();
+
+    assertEquals(1, jobs.size());
+    assertTrue(spool.recover().isEmpty());
+
+    spool.complete(jobs.keySet().iterator().next());
+    spool.close();
+
+    assertTrue(recover(file).isEmpty());
+  }
+
+  @Test
+  public void testIncompleteRecordIsTruncated() throws IOException {
+    File file = new File(temp.getRoot(), "node.spool");
+
+    AsyncHookSpool spool = new AsyncHookSpool(() -> file);
+    spool.append(job("first"));
+    spool.close();
+
+    long size = file.length();
+
+    // the node has been stopped in the middle of appending
+    try (RandomAccessFile raw = new RandomAccessFile(file, "rw")) {
+      raw.seek(size);
+      raw.writeInt(1024);
+      raw.write(new byte[] {1, 2, 3});
+    }
+
+    List<AsyncHookQueue.Job> jobs = recover(file);
+
+    assertEquals(1, jobs.size());
+    assertEquals("first", jobs.get(0).getDescription());
+    assertEquals(size, file.length());
+  }
+
+  private static List<AsyncHookQueue.Job> recover(File file) throws IOException {
+    AsyncHookSpool spool = new AsyncHookSpool(() -> file);
+    try {
+      return new ArrayList<>(spool.recover().values());
+    } finally {
+      spool.close();
+    }
+  }
+
+  private static AsyncHookQueue.Job job(String name) {
+    return new AsyncHookQueue.Job(
+        name,
+        Arrays.asList("/bin/true", name),
+        Collections.singletonMap("BB_REPO_SLUG", name),
+        "stdin of " + name);
+  }
+}
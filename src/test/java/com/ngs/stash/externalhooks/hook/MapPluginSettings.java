@@ -0,0 +1,63 @@
+package com.ngs.stash.externalhooks.hook;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.atlassian.sal.api.pluginsettings.PluginSettings;
+import com.ngs.stash.externalhooks.Const;
+import com.ngs.stash.externalhooks.dao.ExternalHooksSettingsDao;
+
+/** In-memory {@link PluginSettings} for settings of the add-on. */
+class MapPluginSettings implements PluginSettings {
+  private final Map<String, Object> values = new HashMap<>();
+
+  /**
+   * Creates DAO of the async queue settings.
+   *
+   * @param workers
+   * @param queueSize
+   * @param overflow
+   */
+  static ExternalHooksSettingsDao async(
+      int workers, int queueSize, AsyncHookQueue.OverflowPolicy overflow) {
+    return async(workers, queueSize, overflow, 60);
+  }
+
+  /**
+   * Creates DAO of the async queue settings.
+   *
+   * @param workers
+   * @param queueSize
+   * @param overflow
+   * @param timeout seconds
+   */
+  static ExternalHooksSettingsDao async(
+      int workers, int queueSize, AsyncHookQueue.OverflowPolicy overflow, int timeout) {
+    MapPluginSettings settings = new MapPluginSettings();
+    settings.set("async_workers", String.valueOf(workers));
+    settings.set("async_queue_size", String.valueOf(queueSize));
+    settings.set("async_overflow", overflow.getId());
+    settings.set("async_timeout", String.valueOf(timeout));
+
+    return new ExternalHooksSettingsDao(settings);
+  }
+
+  private void set(String component, String value) {
+    put(Const.PLUGIN_KEY + ":global:settings:" + component, value);
+  }
+
+  @Override
+  public Object get(String key) {
+    return values.get(key);
+  }
+
+  @Override
+  public Object put(String key, Object value) {
+    return values.put(key, value);
+  }
+
+  @Override
+  public Object remove(String key) {
+    return values.remove(key);
+  }
+}
@@ -0,0 +1,105 @@
+package com.ngs.stash.externalhooks.util;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class AdaptiveThrottleTest {
+  private static final long LATENCY = TimeUnit.MILLISECONDS.toNanos(1);
+
+  @Test
+  public void testConcurrencyIsLimited() throws Exception {
+    AdaptiveThrottle throttle = new AdaptiveThrottle(0, 2);
+
+    throttle.acquire();
+    throttle.acquire();
+
+    CountDownLatch acquired = acquireInBackground(throttle);
+    assertFalse(acquired.await(200, TimeUnit.MILLISECONDS));
+
+    throttle.release(LATENCY);
+    assertTrue(acquired.await(1, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testRateIsLimited() throws Exception {
+    AdaptiveThrottle throttle = new AdaptiveThrottle(20, 1);
+
+    long started = System.nanoTime();
+    for (int i = 0; i < 5; i++) {
+      throttle.acquire();
+      throttle.release(LATENCY);
+    }
+
+    // the first operation starts right away, others are 50ms apart
+    assertTrue(System.nanoTime() - started >= TimeUnit.MILLISECONDS.toNanos(200));
+  }
+
+  @Test
+  public void testConcurrencyIsHalvedWhenLatencyGrows() throws Exception {
+    AdaptiveThrottle throttle = new AdaptiveThrottle(0, 4);
+
+    for (int i = 0; i < 10; i++) {
+      throttle.acquire();
+      throttle.release(LATENCY);
+    }
+
+    throttle.acquire();
+    throttle.release(100 * LATENCY);
+
+    throttle.acquire();
+    throttle.acquire();
+
+    CountDownLatch acquired = acquireInBackground(throttle);
+    assertFalse(acquired.await(200, TimeUnit.MILLISECONDS));
+
+    // latency is still high, so concurrency goes down to 1
+    throttle.release(LATENCY);
+    throttle.release(LATENCY);
+    assertTrue(acquired.await(1, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testConcurrencyRecoversWhenLatencyIsBackToNormal() throws Exception {
+    AdaptiveThrottle throttle = new AdaptiveThrottle(0, 2);
+
+    for (int i = 0; i < 10; i++) {
+      throttle.acquire();
+      throttle.release(LATENCY);
+    }
+
+    throttle.acquire();
+    throttle.release(100 * LATENCY);
+
+    for (int i = 0; i < 50; i++) {
+      throttle.acquire();
+      throttle.release(LATENCY);
+    }
+
+    throttle.acquire();
+
+    CountDownLatch acquired = acquireInBackground(throttle);
+    assertTrue(acquired.await(1, TimeUnit.SECONDS));
+  }
+
+  private static CountDownLatch acquireInBackground(AdaptiveThrottle throttle) {
+    CountDownLatch acquired = new CountDownLatch(1);
+
+    Thread thread = new Thread(() -> {
+      try {
+        throttle.acquire();
+        acquired.countDown();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    });
+    thread.setDaemon(true);
+    thread.start();
+
+    return acquired;
+  }
+}